@@ -0,0 +1,80 @@
+package hashing;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// owner lookup and routed-reply bookkeeping on a bootstrap that knows ringSize servers
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RingBenchmark {
+    private static final int MASK = 4095;
+
+    @Param({"7", "100", "200", "1000"})
+    int ringSize;
+
+    private BootstrapServer bootstrap;
+    private final long[] keys = new long[MASK + 1];
+    private final long[] preds = new long[MASK + 1];
+    private final long[] currs = new long[MASK + 1];
+    private final String[] names = new String[MASK + 1];
+    private int hops;
+    private int i;
+
+    @Setup
+    public void setup() throws IOException {
+        Path config = Files.createTempFile("bn", ".txt");
+        Files.write(config, List.of("0", "0"));                 // id and port, no seed keys
+        bootstrap = new BootstrapServer(0, 0, config.toString());
+        Files.delete(config);
+
+        Random rnd = new Random(42);
+        Set<Long> ids = new HashSet<>();
+        while (ids.size() < ringSize - 1) {
+            long sid = 1 + Math.floorMod(rnd.nextLong(), Ring.SIZE - 1);
+            if (ids.add(sid)) 
+                bootstrap.addTokens(List.of(sid), sid, new ServerInfo("127.0.0.1", 7000 + ids.size()));
+        }
+        for (int j = 0; j <= MASK; j++) {
+            keys[j]  = Math.floorMod(rnd.nextLong(), Ring.SIZE);
+            preds[j] = Math.floorMod(rnd.nextLong(), Ring.SIZE);
+            currs[j] = Math.floorMod(rnd.nextLong(), Ring.SIZE);
+            names[j] = "user/" + rnd.nextInt(1_000_000) + "/profile";
+        }
+        hops = 32 - Integer.numberOfLeadingZeros(ringSize);   // about log2 of the ring
+    }
+
+    @Benchmark
+    public long findSuccessor() {
+        return bootstrap.findSuccessor(keys[i++ & MASK]);
+    }
+
+    @Benchmark
+    public boolean inRange() {
+        int j = i++ & MASK;
+        return Ring.inRange(preds[j], currs[j], keys[j]);
+    }
+
+    // a string key to its ring position
+    @Benchmark
+    public long hash() {
+        return Ring.key(names[i++ & MASK]);
+    }
+
+    // a reply picking up one hop per server on its way back, then read by the client
+    @Benchmark
+    public List<Long> routePath() {
+        String reply = "found v" + keys[i & MASK];
+        for (int h = 0; h < hops; h++) 
+            reply = Ring.withHop(keys[(i + h) & MASK], reply);
+        i++;
+        return Ring.path(reply);
+    }
+}
@@ -0,0 +1,47 @@
+package hashing;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// BootstrapServer.loadInitialData on a config file with storeSize "<key> <value>" lines
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SeedBenchmark {
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    int storeSize;
+
+    private Path config;
+    private BootstrapServer bootstrap;
+
+    @Setup(Level.Trial)
+    public void writeConfig() throws IOException {
+        config = Files.createTempFile("bn", ".txt");
+        try (BufferedWriter w = Files.newBufferedWriter(config)) {
+            w.write("0\n0\n");
+            for (int k = 0; k < storeSize; k++) 
+                w.write(k + " v" + k + "\n");
+        }
+        Path empty = Files.createTempFile("bn", ".txt");
+        Files.write(empty, "0\n0\n".getBytes());
+        bootstrap = new BootstrapServer(0, 0, empty.toString());
+        Files.delete(empty);
+    }
+
+    @Benchmark
+    public void loadInitialData() throws IOException {
+        bootstrap.loadInitialData(config.toString());
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteConfig() throws IOException {
+        Files.deleteIfExists(config);
+    }
+}
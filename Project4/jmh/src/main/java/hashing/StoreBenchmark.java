@@ -0,0 +1,59 @@
+package hashing;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// "getkeys": atomic extraction of one server's share of a store of storeSize keys.
+// ranges are cut from the store's own key space so sizes beyond the 10-bit ring can be measured
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class StoreBenchmark {
+
+    @Param({"7", "100", "200", "1000"})
+    int ringSize;
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    int storeSize;
+
+    @Param({"skiplist", "packed"})
+    String store;
+
+    private KeyValueStore kv;
+    private NavigableMap<Long, String> taken;
+    private int range;
+
+    @Setup(Level.Trial)
+    public void fill() {
+        kv = KeyValueStore.create(store);
+        Map<Long, String> chunk = new HashMap<>();
+        for (int k = 0; k < storeSize; k++) {
+            chunk.put((long) k, "v" + k);
+            if (chunk.size() == 65536) {
+                kv.putAll(chunk);
+                chunk.clear();
+            }
+        }
+        kv.putAll(chunk);
+    }
+
+    @Benchmark
+    public NavigableMap<Long, String> extractRange() {
+        range = (range + 1) % ringSize;
+        long width = Math.max(1, storeSize / ringSize);
+        int from = (int) (range * width) - 1;
+        taken = kv.extractRange(from, (int) Math.min(storeSize - 1L, from + width));
+        return taken;
+    }
+
+    @TearDown(Level.Invocation)
+    public void restore() {
+        if (taken != null) kv.putAll(taken);            // the next extraction sees a full store
+        taken = null;
+    }
+}
@@ -0,0 +1,54 @@
+package hashing;
+
+import java.util.*;
+
+// heap retained per entry by each store holding n "<key> v<key>" pairs, against a plain TreeMap<Long, String>.
+// java -Xmx8g -cp jmh/target/benchmarks.jar hashing.StoreFootprint [n ...]
+public class StoreFootprint {
+    private static final String[] KINDS = {"treemap", "skiplist", "packed"};
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = args.length == 0 ? new int[] {100_000, 1_000_000, 10_000_000}
+                                       : Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+        System.out.printf("%-9s %12s %12s %10s%n", "store", "entries", "heap MB", "B/entry");
+        for (int n : sizes) {
+            for (String kind : KINDS) {
+                long before = usedHeap();
+                Object store = fill(kind, n);
+                long after = usedHeap();
+                System.out.printf("%-9s %12d %12.1f %10.1f%n", kind, n, (after - before) / 1e6, (double) (after - before) / n);
+                if (store.hashCode() == 42) System.out.print("");      // keep store reachable until measured
+            }
+        }
+    }
+
+    private static Object fill(String kind, int n) {
+        if (kind.equals("treemap")) {
+            TreeMap<Long, String> map = new TreeMap<>();
+            for (int k = 0; k < n; k++) map.put((long) k, "v" + k);
+            return map;
+        }
+        KeyValueStore store = KeyValueStore.create(kind);
+        Map<Long, String> chunk = new HashMap<>();
+        for (int k = 0; k < n; k++) {
+            chunk.put((long) k, "v" + k);
+            if (chunk.size() == 65536) {
+                store.putAll(chunk);
+                chunk.clear();
+            }
+        }
+        store.putAll(chunk);
+        return store;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime rt = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {                   // settle until a full gc stops freeing
+            System.gc();
+            Thread.sleep(50);
+            used = Math.min(used, rt.totalMemory() - rt.freeMemory());
+        }
+        return used;
+    }
+}
@@ -0,0 +1,180 @@
+package hashing;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Lock;
+import java.util.function.LongSupplier;
+
+// "mget|mput|mdelete <n> [ttl [ms]]" followed by n lines, "<key>" or "<key> <value>" for mput: the keys
+// are split by the server they go to, ours are applied in one pass under the serving lock and every
+// other server gets its share as one sub-batch, all of them at once. the answer is "count <n>" and a
+// status line per key in request order, the same statuses lookup/insert/delete give. like a routed
+// request a batch has one deadline, -Dpeer.timeoutMs unless ms says otherwise, and each sub-batch
+// passes on what is left of it
+final class Batch {
+    private static final ExecutorService SENDERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "batch");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private Batch() { }
+
+    // what a Router answers for a key that is not ours and that we cannot route either
+    static final ServerInfo NOWHERE = new ServerInfo("", 0);
+
+    // the server a key goes to, null when it is ours to apply; asked while holding the serving lock
+    interface Router {
+        ServerInfo of(long key);
+    }
+
+    // applies the keys given, filling in a status for each
+    interface Local {
+        void apply(String verb, long[] keys, String[] values, String[] out);
+    }
+
+    //epoch is the table router routes on, for the "notowner <epoch>" of keys it cannot send on
+    static void serve(NioServer.Session session, String[] p, PeerPool peers, Lock serving, LongSupplier epoch,
+                      Router router, Local local) {
+        String verb = p[0].toLowerCase();
+        int n = Integer.parseInt(p[1]);
+        int ttl = p.length > 2 ? Integer.parseInt(p[2]) : Ring.MAX_HOPS;
+        long deadline = PeerPool.deadline(p.length > 3 ? Long.parseLong(p[3]) : PeerPool.TIMEOUT_MS);
+        long[] keys = new long[n];
+        String[] values = verb.equals("mput") ? new String[n] : null;
+        for (int i = 0; i < n; i++) {
+            String line = session.readLine();
+            if (line == null)
+                return;                                     // sender went away
+            keys[i] = Ring.key(line.split(" ", 2)[0]);
+            if (values != null) values[i] = Ring.rest(line, 1);
+        }
+
+        String[] out = new String[n];
+        Map<ServerInfo, List<Integer>> remote = new HashMap<>();
+        if (!Migration.acquire(serving)) {
+            Arrays.fill(out, "err busy");                   // our ranges are being handed over
+            reply(session, out);
+            return;
+        }
+        try {
+            List<Integer> mine = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                if (values != null && values[i] == null) {
+                    out[i] = "err no value";
+                    continue;
+                }
+                ServerInfo to = router.of(keys[i]);
+                if (to == null) mine.add(i);
+                else if (ttl <= 0 || to == NOWHERE) out[i] = "notowner " + epoch.getAsLong();
+                else remote.computeIfAbsent(to, s -> new ArrayList<>()).add(i);
+            }
+            applyPart(local, verb, keys, values, mine, out);
+        } finally {
+            serving.unlock();
+        }
+
+        List<Future<?>> sent = new ArrayList<>();
+        for (Map.Entry<ServerInfo, List<Integer>> e : remote.entrySet())
+            sent.add(SENDERS.submit(() -> forward(peers, e.getKey(), verb, ttl - 1, deadline, keys, values, e.getValue(), out)));
+        for (Future<?> f : sent) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                //forward() fills in an error for its keys itself
+            }
+        }
+
+        reply(session, out);
+    }
+
+    private static void reply(NioServer.Session session, String[] out) {
+        StringBuilder sb = new StringBuilder("count ").append(out.length);
+        for (String s : out) sb.append('\n').append(s != null ? s : "err interrupted");
+        session.println(sb.toString());                    // the whole answer in one write
+    }
+
+    //the statuses a lookup, insert or delete of each key would give; one putAll for mput
+    static void apply(KeyValueStore store, Replicator replicator, String verb, long[] keys, String[] values, String[] out) {
+        switch (verb) {
+            case "mget":
+                for (int i = 0; i < keys.length; i++) {
+                    String v = store.get(keys[i]);
+                    out[i] = v != null ? "found " + v : "notfound";
+                }
+                break;
+            case "mput":
+                Map<Long, String> entries = new HashMap<>();
+                for (int i = 0; i < keys.length; i++) entries.put(keys[i], values[i]);   // later line wins
+                store.putAll(entries);
+                for (int i = 0; i < keys.length; i++) {
+                    replicator.write(keys[i], values[i]);
+                    out[i] = "ok";
+                }
+                break;
+            default:
+                for (int i = 0; i < keys.length; i++) {
+                    if (store.remove(keys[i]) == null) {
+                        out[i] = "notfound";
+                    } else {
+                        replicator.write(keys[i], null);
+                        out[i] = "deleted";
+                    }
+                }
+        }
+    }
+
+    private static void applyPart(Local local, String verb, long[] keys, String[] values, List<Integer> part, String[] out) {
+        if (part.isEmpty())
+            return;
+        long[] k = new long[part.size()];
+        String[] v = values != null ? new String[part.size()] : null;
+        String[] o = new String[part.size()];
+        for (int j = 0; j < k.length; j++) {
+            k[j] = keys[part.get(j)];
+            if (v != null) v[j] = values[part.get(j)];
+        }
+        local.apply(verb, k, v, o);
+        for (int j = 0; j < k.length; j++) out[part.get(j)] = o[j];
+    }
+
+    //one sub-batch on one pooled connection, written with a single flush; given up at deadline
+    private static void forward(PeerPool peers, ServerInfo target, String verb, int ttl, long deadline, long[] keys,
+                                String[] values, List<Integer> part, String[] out) {
+        PeerPool.Connection c = null;
+        try {
+            c = peers.borrow(target, PeerPool.left(deadline, target));
+            long ms = Math.max(1, PeerPool.left(deadline, target) * 9L / 10);     // the reply has to get back in time
+            StringBuilder sb = new StringBuilder(verb).append(' ').append(part.size()).append(' ').append(ttl)
+                    .append(' ').append(ms).append('\n');
+            for (int i : part) {
+                sb.append(keys[i]);
+                if (values != null) sb.append(' ').append(values[i]);
+                sb.append('\n');
+            }
+            c.out.print(sb);
+            c.out.flush();
+            c.socket.setSoTimeout(PeerPool.left(deadline, target));
+            String head = c.in.readLine();
+            if (head == null || !head.startsWith("count ") || Integer.parseInt(head.substring(6)) != part.size())
+                throw new IOException("bad batch reply from " + target + ": " + head);
+            for (int i : part) {
+                c.socket.setSoTimeout(PeerPool.left(deadline, target));
+                String line = c.in.readLine();
+                if (line == null) throw new EOFException("connection closed by " + target);
+                out[i] = line;
+            }
+            peers.release(c);
+        } catch (IOException | RuntimeException e) {
+            if (c != null) peers.invalidate(c);
+            String err = "err " + (e instanceof IOException ? PeerPool.reason((IOException) e) : "unreachable");
+            for (int i : part) {
+                if (out[i] == null) out[i] = err;
+            }
+        }
+    }
+}
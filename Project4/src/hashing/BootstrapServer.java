@@ -2,343 +2,883 @@ package hashing;
 
 import java.io.*;
 import java.net.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Lock;
 
 public class BootstrapServer {
-    private int id;                     // usually 0
+    private long id;                    // usually 0
     private int port;
-    private TreeMap<Integer, String> keyValueStore = new TreeMap<>();
-    private TreeMap<Integer, ServerInfo> serverRing = new TreeMap<>();
-
-    public BootstrapServer(int id, int port, String configFile) throws IOException {
+    private final KeyValueStore keyValueStore;
+    private final KeyValueStore replicaStore;           // copies of keys owned by our predecessors
+    private volatile RingSnapshot ring = RingSnapshot.EMPTY;   // replaced whole on every enter/exit
+    private final Object membership = new Object();     // enter/exit change the ring one at a time
+
+    // pipelined client requests run here so one connection can have many in flight
+    private final ThreadPoolExecutor clientRequests = new ThreadPoolExecutor(
+            Integer.getInteger("client.threads", 16), Integer.getInteger("client.threads", 16),
+            60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(4096),
+            new ThreadPoolExecutor.CallerRunsPolicy());           // a full queue stalls the sending connection
+    private final PeerPool peers = new PeerPool();
+    private final Replicator replicator;
+    private final LookupCache cache = new LookupCache(Integer.getInteger("cache.size", 0),
+                                                      Long.getLong("cache.ttlMs", 5000));
+    private final Metrics metrics;
+    private final Migration migration;
+    private final RangeLoad load = new RangeLoad();
+    private final Gossip gossip;
+    private final CountDownLatch learned;              // restarted: a table from gossip before admitting joins
+    private final Path ringFile;                        // last table we had, kept beside the store with -Ddata.dir
+    private final NioServer server;
+
+    public BootstrapServer(long id, int port, String configFile) throws IOException {
         this.id = id;
         this.port = port;
-        loadInitialData(configFile);
-        serverRing.put(id, new ServerInfo("localhost", port)); // add self to ring
-    }
-
-    private void loadInitialData(String configFile) throws IOException {
-        BufferedReader br = new BufferedReader(new FileReader(configFile));
-        br.readLine(); // skip ID
-        br.readLine(); // skip port
-        String line;
-        while ((line = br.readLine()) != null) {
-            String[] parts = line.trim().split(" ");
-            if (parts.length == 2) {
-                int key = Integer.parseInt(parts[0]);
-                keyValueStore.put(key, parts[1]);
+        this.keyValueStore = KeyValueStore.open("bootstrap-" + id);
+        this.replicaStore  = KeyValueStore.open("bootstrap-" + id + "-replicas");
+        this.replicator    = new Replicator(peers, this::ownedKeys);
+        this.metrics       = new Metrics("bootstrap-" + id);
+        this.migration     = new Migration(keyValueStore, peers, metrics);
+        this.gossip        = new Gossip(id, peers, () -> ring, this::adoptRing);
+        this.server        = new NioServer(port, metrics.instrument(new ServerHandler()));
+        metrics.gauge("connections", server::connections);
+        metrics.gauge("queue", () -> server.queued() + clientRequests.getQueue().size());
+        metrics.gauge("store", keyValueStore::size);
+        metrics.gauge("positions", () -> ring.size());
+        metrics.gauge("epoch", () -> ring.epoch);
+        metrics.register();
+        String dataDir = System.getProperty("data.dir");
+        this.ringFile = dataDir == null ? null : Paths.get(dataDir, "bootstrap-" + id + ".ring");
+        RingSnapshot saved = savedRing();
+        boolean restarted = saved != null || !keyValueStore.isEmpty();  // an empty store alone proves nothing
+        learned = new CountDownLatch(restarted ? 1 : 0);
+        if (!restarted) {
+            loadInitialData(configFile);
+        }
+        if (saved != null) {
+            ring = saved;                               // gossip reaches its servers, epochs go on from it
+            System.out.println("Restarted at epoch " + saved.epoch + ", waiting for the ring from gossip");
+        } else {
+            addTokens(placeTokens(id, Integer.getInteger("vnodes", 1)), id, new ServerInfo("localhost", port)); // add self to ring
+        }
+    }
+
+    //the table saved by an earlier run, null on a fresh start or without -Ddata.dir
+    private RingSnapshot savedRing() throws IOException {
+        if (ringFile == null || !Files.exists(ringFile))
+            return null;
+        String table = new String(Files.readAllBytes(ringFile), "UTF-8").trim();
+        RingSnapshot r = RingSnapshot.parse(table.split(" "), 0, (sid, ip, p) -> new ServerInfo(ip, p));
+        return r.indexOf(id) >= 0 ? r : null;
+    }
+
+    //every ring we publish, so a restart knows it is one and which epoch it was at
+    private void setRing(RingSnapshot r) {
+        ring = r;
+        if (ringFile == null)
+            return;
+        try {
+            Path tmp = ringFile.resolveSibling(ringFile.getFileName() + ".tmp");
+            Files.write(tmp, r.table().getBytes("UTF-8"));
+            Files.move(tmp, ringFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Could not save the ring: " + e.getMessage());
+        }
+    }
+
+    void loadInitialData(String configFile) throws IOException {
+        new BulkLoader(ring, id, keyValueStore, peers).load(Paths.get(configFile), 2);     // skip ID and port
+    }
+
+    //seed file of "<key> <value>" lines sent straight to the current owners; joins wait until it is done
+    private void bulkLoad(String file) {
+        synchronized (membership) {
+            try {
+                long n = new BulkLoader(ring, id, keyValueStore, peers).load(Paths.get(file), 0);
+                metrics.count("bulk.keys", n);
+                cache.invalidateRange(id, id);                  // (id, id] is the whole ring
+                if (replicator.enabled())
+                    replicator.push(ownedKeys());
+            } catch (IOException e) {
+                System.out.println("Bulk load failed: " + e.getMessage());
             }
         }
-        br.close();
     }
 
     public void start() throws IOException {
-        ServerSocket serverSocket = new ServerSocket(port);
         System.out.println("Bootstrap Server started on port " + port);
+        gossip.start();
         new Thread(() -> userInteraction()).start();            //CLI thread
-        while (true) {
-            Socket client = serverSocket.accept();
-            new Thread(new ServerHandler(client)).start();
-        }
+        server.serve();                                         //selector loop
+    }
+
+    //listen without a console, e.g. inside the load generator
+    void startInBackground() {
+        gossip.start();
+        Thread t = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                System.out.println("Listener error: " + e.getMessage());
+            }
+        }, "bootstrap-" + port);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    //stop serving and close every connection; only for servers started in the background
+    void close() {
+        gossip.stop();
+        server.close();
+        clientRequests.shutdownNow();
+        peers.close();
     }
 
     private void userInteraction() {
         Scanner sc = new Scanner(System.in);
         while (true) {
             System.out.print(">> ");
-            String[] input = sc.nextLine().trim().split(" ");
+            String line = sc.nextLine().trim();
+            String[] input = line.split(" ");
             if (input.length == 0) continue;
 
             switch (input[0].toLowerCase()) {
                 case "lookup":
                     if (input.length == 2) {
-                        int key = Integer.parseInt(input[1]);
+                        long key = Ring.key(input[1]);
                         lookup(key);
                     } else System.out.println("Usage: lookup <key>");
                     break;
                 case "insert":
-                    if (input.length == 3) {
-                        int key = Integer.parseInt(input[1]);
-                        insert(key, input[2]);
+                    if (input.length >= 3) {
+                        long key = Ring.key(input[1]);
+                        insert(key, Ring.rest(line, 2));
                     } else System.out.println("Usage: insert <key> <value>");
                     break;
                 case "delete":
                     if (input.length == 2) {
-                        int key = Integer.parseInt(input[1]);
+                        long key = Ring.key(input[1]);
                         delete(key);
                     } else System.out.println("Usage: delete <key>");
                     break;
+                case "stats":
+                    System.out.println(metrics.report());
+                    break;
+                case "ownership":
+                    printOwnership();
+                    break;
+                case "load":
+                    if (input.length == 2) bulkLoad(input[1]);
+                    else System.out.println("Usage: load <file>");
+                    break;
+                case "cache":
+                    System.out.println(cache.enabled() ? cache.stats() : "Cache disabled (-Dcache.size=<entries>)");
+                    break;
+                case "rebalance":
+                    rebalance(input.length > 1 && input[1].equalsIgnoreCase("dry"));
+                    break;
                 default:
                     System.out.println("Unknown command");
             }
         }
     }
 
-    private void lookup(int key) {
-        int res = findSuccessor(key);
-        List<Integer> path = clockwisePath(0, res);
+    private void lookup(long key) {
+        String reply = route("lookup", key, null, Ring.MAX_HOPS);
+        String status = Ring.status(reply);
 
-        if (res == 0) {
-            if (keyValueStore.containsKey(key)) {
-                System.out.println("Key " + key + " found with value: " + keyValueStore.get(key));
-                //System.out.println("Server path: [0]");               // for bootstrap server
-            } else {
-                System.out.println("Key not found.");
-                //System.out.println("Server path: [0]");
-            }
+        if (status.startsWith("found")) {
+            System.out.println("Key " + key + " found with value: " + status.substring(6));
         } else {
-            String response = remoteCommand(res, "lookup " + key).trim();
-            if (response.startsWith("found")) {
-                System.out.println("Key " + key + " found with value: " + response.substring(6));
-            } else {
-                System.out.println("Key not found.");
-            }
+            System.out.println("Key not found.");
         }
-        System.out.println("Server path: " + path);
-
+        System.out.println("Server path: " + Ring.path(reply));
     }
 
-    private void insert(int key, String value) {
-        int res = findSuccessor(key);
-        List<Integer> path = clockwisePath(0, res);
+    private void insert(long key, String value) {
+        String reply = route("insert", key, value, Ring.MAX_HOPS);
+        List<Long> path = Ring.path(reply);
+        long owner = path.get(path.size() - 1);
 
-        if (res == 0) {
-            keyValueStore.put(key, value);
+        if (!Ring.status(reply).equals("ok")) {
+            System.out.println("Insert failed: " + Ring.status(reply));
+        } else if (owner == id) {
             System.out.println("Inserted at Bootstrap Server");
         } else {
-            remoteCommand(res, "insert " + key + " " + value);
-            System.out.println("Inserted at Name Server " + res);
-
+            System.out.println("Inserted at Name Server " + owner);
         }
         System.out.println("Server path: " + path);
     }
 
-    private void delete(int key) {
-        int res = findSuccessor(key);
-        List<Integer> path = clockwisePath(0, res);
-        String result;
+    private void delete(long key) {
+        String reply = route("delete", key, null, Ring.MAX_HOPS);
+        String result = Ring.status(reply).equals("deleted") ? "Successful deletion" : "Key not found.";
 
-        if (res == 0) {
-            result = (keyValueStore.remove(key) != null) ? "Successful deletion" : "Key not found.";
-            //System.out.println("Server path: [0]");
-        } else {
-            result = remoteCommand(res, "delete " + key).trim()
-                     .equals("deleted") ? "Successful deletion" : "Key not found.";
-            //System.out.println("Key not found.");
-            //System.out.println("Server path: [0]");
-        }
         System.out.println(result);
-        System.out.println("Server path: " + path);
+        System.out.println("Server path: " + Ring.path(reply));
     }
 
-    //clockwise successor of id
-    private int findSuccessor(int key) {
-        Integer candidate = serverRing.ceilingKey(key);
-        return (candidate != null) ? candidate : serverRing.firstKey();
+    // serve the key here if we own it, otherwise send it straight to the owner;
+    // the reply carries the ids of every server that handled it
+    private String route(String verb, long key, String value, int ttl) {
+        return route(verb, key, value, ttl, PeerPool.deadline(PeerPool.TIMEOUT_MS));
     }
 
+    //the same, answered by the given System.nanoTime(); hops after us get what is left of it
+    private String route(String verb, long key, String value, int ttl, long deadline) {
+        RingSnapshot r;
+        int at;
+        long owner;
+        Migration.Moved moved = null;
+        Lock serving = migration.serving();             // a cutover of our ranges waits for local work
+        if (!Migration.acquire(serving))
+            return "err busy path " + id;
+        try {
+            r = ring;                                   // one consistent view for the whole request
+            at = r.successorIndex(key);
+            owner = r.token(at);
+            if (r.owner(at) == id && (moved = migration.forwardTo(key)) == null) {
+                load.record(owner, key);
+                return Ring.withHop(id, applyLocal(verb, key, value));
+            }
+        } finally {
+            serving.unlock();
+        }
+        if (moved != null) {                            // handed over a moment ago, not in our ring yet
+            try {
+                return Ring.withHop(id, peers.call(moved.target, Ring.hop(verb, key, value, ttl - 1, deadline),
+                                                   PeerPool.left(deadline, moved.target)));
+            } catch (IOException e) {
+                return "err " + PeerPool.reason(e) + " path " + id + "," + moved.owner;
+            }
+        }
+        if (ttl <= 0) {
+            return "notowner " + r.epoch + " path " + id;      // out of hops, or a client that asked us directly
+        }
+
+        boolean read = verb.equals("lookup");
+        if (read && Replicator.READ_ANY && replicator.enabled()) {
+            // spread reads over the owner and its replicas
+            List<Long> replicas = successorsOf(r.owner(at), Replicator.FACTOR - 1);
+            replicas.add(0, owner);
+            long pick = replicas.get(ThreadLocalRandom.current().nextInt(replicas.size()));
+            String copy = pick == id ? replicaStore.get(key) : null;
+            if (copy != null) {
+                return "found " + copy + " path " + id;
+            }
+            if (pick != id) {
+                owner = pick;
+            }
+        }
+        boolean caching = cache.enabled();
+        long stamp = caching && read ? cache.stamp(key) : 0;
+        if (caching && read) {
+            String cached = cache.get(key);
+            if (cached != null) {
+                return cached + " path " + id;          // answered here, no hop to the owner
+            }
+        } else if (caching) {
+            cache.invalidate(key);
+        }
+
+        String stale = !read && Replicator.READ_ANY ? replicaStore.get(key) : null;
+        String reply = remoteCommand(owner, Ring.hop(verb, key, value, ttl - 1, deadline), deadline);
 
-    //building list of id's
-    private List<Integer> clockwisePath(int from, int to) {
-        List<Integer> path = new ArrayList<>();
-        if (from == to) {
-            path.add(from);
-            return path;
+        String status = Ring.status(reply);
+        if (caching && read && (status.startsWith("found") || status.equals("notfound"))) {
+            cache.put(key, status, stamp);
+        } else if (caching && !read) {
+            cache.invalidate(key);                      // drop anything read while the write was in flight
+        }
+        if (stale != null) {
+            replicaStore.remove(key, stale);            // older than the write, unless the owner's copy already came
         }
+        return Ring.withHop(id, reply);
+    }
 
-        SortedMap<Integer, ServerInfo> tail = serverRing.tailMap(from, false);
-        tail.keySet().forEach(id -> { 
-            if (id <= to) {
-                path.add(id); 
+    //one pipelined client request, answered with the same replies as the routed verbs
+    private String clientRequest(String request) {
+        try {
+            String[] p = request.split(" ");
+            String verb = p[0].toLowerCase();
+            switch (verb) {
+                case "lookup":
+                case "delete":
+                    return route(verb, Ring.key(p[1]), null, Ring.MAX_HOPS);
+                case "insert":
+                    String value = Ring.rest(request, 2);
+                    return value == null ? "err no value" : route(verb, Ring.key(p[1]), value, Ring.MAX_HOPS);
+                default:
+                    return "err unknown command " + verb;
             }
-        });
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return "err bad request";
+        }
+    }
+
+    //where a key of a batch goes, null when it is ours
+    private ServerInfo batchTarget(long key) {
+        RingSnapshot r = ring;
+        int at = r.successorIndex(key);
+        if (r.owner(at) != id)
+            return r.server(at);
+        Migration.Moved moved = migration.forwardTo(key);
+        return moved != null ? moved.target : null;
+    }
 
-        serverRing.headMap(from, false).keySet().forEach(path::add);
-        if (!path.contains(to)) {
-            path.add(to);
+    private String applyLocal(String verb, long key, String value) {
+        switch (verb) {
+            case "lookup":
+                String v = keyValueStore.get(key);
+                return v != null ? "found " + v : "notfound";
+            case "insert":
+                keyValueStore.put(key, value);
+                replicator.write(key, value);
+                return "ok";
+            default:
+                if (keyValueStore.remove(key) == null)
+                    return "notfound";
+                replicator.write(key, null);
+                return "deleted";
         }
+    }
 
-        path.add(0, from);
-        return path;
+    //the n servers after node going clockwise, each physical server once and never node itself;
+    //walks only as far as it needs to
+    private List<Long> successorsOf(long node, int n) {
+        RingSnapshot r = ring;
+        Set<Long> out = new LinkedHashSet<>();
+        long self = r.ownerOf(node);
+        int i = r.successorIndex(node);
+        if (r.token(i) == node) i = r.next(i);
+        for (int step = 0; step < r.size() && out.size() < n; step++, i = r.next(i)) {
+            if (r.owner(i) != self) out.add(r.owner(i));
+        }
+        return new ArrayList<>(out);
     }
 
-    //tcp message
-    private String remoteCommand(int id, String message) {
-        ServerInfo info = serverRing.get(id);
+    private long physicalOf(long token) {
+        return ring.ownerOf(token);
+    }
+
+    //the server's id plus vnodes-1 positions, each one splitting the widest range left on the ring
+    List<Long> placeTokens(long serverId, int vnodes) {
+        RingSnapshot r = ring;
+        TreeSet<Long> taken = new TreeSet<>();
+        for (int i = 0; i < r.size(); i++) taken.add(r.token(i));
+        List<Long> tokens = new ArrayList<>();
+        tokens.add(serverId);
+        taken.add(serverId);
+        for (int i = 1; i < vnodes; i++) {
+            long start = 0, width = 0;
+            for (long t : taken) {
+                long pred = taken.lower(t) != null ? taken.lower(t) : taken.last();
+                long w = pred == t ? Ring.SIZE : Ring.distance(pred, t);
+                if (w > width) {
+                    start = pred;
+                    width = w;
+                }
+            }
+            if (width < 2) 
+                break;                  // ring is full
+            long t = (start + width / 2) % Ring.SIZE;
+            tokens.add(t);
+            taken.add(t);
+        }
+        return tokens;
+    }
+
+    //membership changes publish a whole new snapshot; callers hold the membership lock
+    void addTokens(List<Long> tokens, long serverId, ServerInfo info) {
+        setRing(ring.with(tokens, serverId, info));
+    }
+
+    //with virtual nodes name servers route on the full table: the servers whose ranges changed get it
+    //at once, gossip takes it to the rest
+    private void publishRing(boolean hadVirtual, Collection<Long> changed) {
+        RingSnapshot r = ring;
+        if (!hadVirtual && !r.virtual())
+            return;
+        String table = "setring " + r.table();
+        for (int i = 0; i < r.size(); i++) {
+            if (r.owner(i) == r.token(i) && r.owner(i) != id && changed.contains(r.owner(i)))
+                peers.send(r.server(i), table);
+        }
+    }
+
+    //a newer table from gossip, e.g. after we restarted and only know ourselves
+    private void adoptRing(String line) {
+        RingSnapshot view = RingSnapshot.parse(line.trim().split(" "), 1, (sid, ip, p) -> new ServerInfo(ip, p));
+        synchronized (membership) {
+            if (view.epoch <= ring.epoch || view.indexOf(id) < 0)
+                return;
+            setRing(view);
+            migration.settled(view.epoch);
+            cache.invalidateRange(id, id);                  // (id, id] is the whole ring
+        }
+        if (learned.getCount() > 0) {
+            System.out.println("Took the ring from gossip: " + ringKeys());
+            learned.countDown();
+        }
+        updateReplicas();
+    }
+
+    //share of the identifier space each physical server owns, summed over its positions
+    private void printOwnership() {
+        RingSnapshot r = ring;
+        Map<Long, Long> span = new TreeMap<>();
+        Map<Long, Integer> tokens = new TreeMap<>();
+        for (int i = 0; i < r.size(); i++) {
+            long t = r.token(i);
+            long pred = r.predecessor(t);
+            span.merge(r.owner(i), pred == t ? Ring.SIZE : Ring.distance(pred, t), Long::sum);
+            tokens.merge(r.owner(i), 1, Integer::sum);
+        }
+        span.forEach((sid, width) -> System.out.printf("Server %d: %d position(s), %.1f%% of the ring%n",
+                                                        sid, tokens.get(sid), width * 100.0 / Ring.SIZE));
+        long max = Collections.max(span.values());
+        long min = Collections.min(span.values());
+        System.out.printf("Largest/smallest share: %.2f%n", (double) max / min);
+        System.out.println("Ring epoch " + r.epoch);
+    }
+
+    //keys in our own range(s)
+    private Map<Long, String> ownedKeys() {
+        RingSnapshot r = ring;
+        Map<Long, String> owned = new HashMap<>();
+        keyValueStore.snapshot().forEach((k, v) -> {
+            if (r.owner(r.successorIndex(k)) == id) owned.put(k, v);
+        });
+        return owned;
+    }
+
+    //replica set follows ring membership
+    private void updateReplicas() {
+        List<ServerInfo> targets = new ArrayList<>();
+        for (long sid : successorsOf(id, Replicator.FACTOR - 1)) 
+            targets.add(ring.serverAt(sid));
+        replicator.setTargets(targets);
+        Replicator.prune(replicaStore, ring, id);
+    }
+
+    //clockwise successor of id
+    long findSuccessor(long key) {
+        return ring.successor(key);
+    }
+
+    private String ringKeys() {
+        RingSnapshot r = ring;
+        List<Long> tokens = new ArrayList<>();
+        for (int i = 0; i < r.size(); i++) tokens.add(r.token(i));
+        return tokens + " (epoch " + r.epoch + ")";
+    }
+
+    //tcp message over a pooled connection; "err timeout|unavailable|unreachable path <id>" if it fails
+    private String remoteCommand(long id, String message, long deadline) {
+        ServerInfo info = ring.serverAt(id);
 
         if (info == null) {
-            return "";
+            return "err unreachable path " + id;
         }
 
-        try (Socket s = new Socket(info.ip, info.port);
-             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
-             PrintWriter out = new PrintWriter(s.getOutputStream(), true)) {
-            out.println(message);
-            return in.readLine();
+        long start = System.nanoTime();
+        try {
+            String reply = peers.call(info, message, PeerPool.left(deadline, info));
+            metrics.outbound(System.nanoTime() - start, true);
+            return reply;
         } catch (IOException e) {
-            return "";
+            metrics.outbound(System.nanoTime() - start, false);
+            metrics.count("outbound." + PeerPool.reason(e), 1);
+            return "err " + PeerPool.reason(e) + " path " + id;
         }
     }
 
-    class ServerHandler implements Runnable {
-        private Socket socket;
-
-        ServerHandler(Socket socket) {
-            this.socket = socket;
+    //every server's load folded into the ring, then the moves that even it out; dry only prints them
+    private void rebalance(boolean dry) {
+        synchronized (membership) {
+            RingSnapshot r = ring;
+            Rebalancer plan = new Rebalancer(r);
+            Set<Long> servers = new TreeSet<>();
+            for (int i = 0; i < r.size(); i++) servers.add(r.owner(i));
+            for (long sid : servers) {
+                try {
+                    plan.add(sid == id ? load.report(false) : peers.call(r.serverAt(sid), "load"));
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("No load from server " + sid + ", nothing planned: " + e.getMessage());
+                    return;
+                }
+            }
+            List<Rebalancer.Move> moves = plan.plan();
+            if (moves.isEmpty()) System.out.println("Nothing worth moving.");
+            for (Rebalancer.Move m : moves) System.out.println((dry ? "Would move " : "Moving ") + m);
+            plan.before().forEach((sid, l) -> System.out.printf("Server %d: %.0f req/s -> %.0f req/s%n",
+                                                                 sid, l, plan.after().get(sid)));
+            System.out.printf("Busiest/mean: %.2f -> %.2f%n", Rebalancer.skew(plan.before()), Rebalancer.skew(plan.after()));
+            if (dry) {
+                System.out.println("Dry run, nothing moved.");
+                return;
+            }
+            for (Rebalancer.Move m : moves) {
+                String err = move(m);
+                if (err != null) {
+                    System.out.println("Move of (" + m.from + ", " + m.to + "] failed, the rest of the plan is dropped: " + err);
+                    break;
+                }
+            }
+            // the counts were per position, start over on the new ones
+            load.report(true);
+            for (long sid : servers) {
+                if (sid != id) peers.send(ring.serverAt(sid), "load reset");
+            }
+            System.out.println("Current ring: " + ringKeys());
         }
+    }
 
-        public void run() {
-            try (
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true)
-            ) {
-                String input = in.readLine();
-                if (input == null || input.isEmpty()) return;
-                String[] parts = input.trim().split(" ");
-                String command = parts[0];
-
-                if ("enter".equalsIgnoreCase(command)) {
-                    int serverId = Integer.parseInt(parts[1]);
-                    int serverPort = Integer.parseInt(parts[2]);
+    //hands (from, to] to the taker the way a join does, copy then cutover, and gives it position to;
+    //callers hold the membership lock. null once done, else why it was called off
+    private String move(Rebalancer.Move m) {
+        RingSnapshot before = ring;
+        boolean hadVirtual = before.virtual();
+        ServerInfo at = before.serverAt(m.holder);
+        ServerInfo info = before.serverAt(m.taker);
+        RingSnapshot after = before.with(List.of(m.to), m.taker, info);
+        String target = m.taker + " " + info.ip + " " + info.port;
+        String range = " " + m.from + " " + m.to;
+
+        String reply = handOver(m.holder, at, "copy " + target + range);
+        if (reply.startsWith("copied"))
+            reply = handOver(m.holder, at, "cutover " + target + " " + after.epoch + range);
+        if (!reply.startsWith("moved")) {
+            handOver(m.holder, at, "dropcopy" + range);
+            return reply;
+        }
+        addTokens(List.of(m.to), m.taker, info);
+        migration.settled(ring.epoch);
+        cache.invalidateRange(m.from, m.to);
+        if (m.taker != id) {
+            try {
+                peers.call(info, "setring " + ring.table());      // before it is asked for the keys it now owns
+            } catch (IOException e) {
+                //publishRing and gossip get it there
+            }
+        }
+        publishRing(hadVirtual, Set.of(m.holder, m.taker));
+        updateReplicas();
+        if (m.taker == id)
+            replicator.push(ownedKeys());
+        return null;
+    }
 
-                    String newIp = socket.getInetAddress().getHostAddress();
-                    serverRing.put(serverId, new ServerInfo(newIp, serverPort));
+    //a copy/dropcopy/cutover step on a holder of the entering server's ranges, possibly ourselves
+    private String handOver(long holder, ServerInfo at, String request) {
+        if (holder == id)
+            return migration.handle(request.split(" "));
+        try {
+            return peers.call(at, request, PeerPool.BULK_MS);
+        } catch (IOException e) {
+            return "err " + e.getMessage();
+        }
+    }
 
-                    //serverRing.put(serverId, new ServerInfo(socket.getInetAddress().getHostAddress(), serverPort));
+    // handles one request line; connections stay open for further lines
+    class ServerHandler implements NioServer.Handler {
 
-                    // update successor and predecessor
-                    int succId = serverRing.higherKey(serverId) != null ?
-                                  serverRing.higherKey(serverId) :
-                                  serverRing.firstKey();
+        public void handle(NioServer.Session session, String input) throws IOException {
+            String[] parts = input.trim().split(" ");
+            String command = parts[0];
 
-                    int predId = serverRing.lowerKey(serverId) != null ?
-                                  serverRing.lowerKey(serverId) :
-                                  serverRing.lastKey();
-                    
-                    // send neighbour info back to entering node
-                    out.println("neighbors " + predId + " " + serverRing.get(predId).ip + " " + serverRing.get(predId).port + " " 
-                                            + succId + " " + serverRing.get(succId).ip + " " + serverRing.get(succId).port);
+            if ("enter".equalsIgnoreCase(command)) {
+                try {
+                    learned.await(3L * Gossip.ROUND_MS, TimeUnit.MILLISECONDS);   // the servers still there tell us the ring
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                synchronized (membership) {
+                    long serverId = Long.parseLong(parts[1]);
+                    int serverPort = Integer.parseInt(parts[2]);
+                    int vnodes = parts.length > 3 ? Math.max(1, Integer.parseInt(parts[3])) : 1;
+                    boolean hadVirtual = ring.virtual();
+
+                    String newIp = session.remoteHost();
+                    ServerInfo info = new ServerInfo(newIp, serverPort);
+
+                    // each new position's keys are held by its clockwise successor until now;
+                    // the ranges a holder gives up, "<from> <to>..." by holder, the one holding our id first
+                    List<Long> tokens = placeTokens(serverId, vnodes);
+                    RingSnapshot before = ring;
+                    RingSnapshot after = before.with(tokens, serverId, info);      // published after the cutover
+                    Map<Long, String> holders = new HashMap<>();
+                    Map<Long, StringBuilder> given = new LinkedHashMap<>();
+                    Map<Long, ServerInfo> holderAt = new HashMap<>();
+                    for (long t : tokens) {
+                        int at = before.successorIndex(t);
+                        ServerInfo h = before.server(at);
+                        holders.put(t, before.owner(at) + " " + h.ip + " " + h.port);
+                        holderAt.put(before.owner(at), h);
+                        given.computeIfAbsent(before.owner(at), o -> new StringBuilder())
+                             .append(' ').append(after.predecessor(t)).append(' ').append(t);
+                    }
+                    String target = serverId + " " + newIp + " " + serverPort;
+
+                    // phase one: every holder streams a copy and goes on serving; any failure calls the join off
+                    for (Map.Entry<Long, StringBuilder> e : given.entrySet()) {
+                        String reply = handOver(e.getKey(), holderAt.get(e.getKey()), "copy " + target + e.getValue());
+                        if (!reply.startsWith("copied")) {
+                            for (Map.Entry<Long, StringBuilder> d : given.entrySet())
+                                handOver(d.getKey(), holderAt.get(d.getKey()), "dropcopy" + d.getValue());
+                            System.out.println("Server " + serverId + " not admitted, copy from " + e.getKey() + " failed: " + reply);
+                            session.println("err copy from " + e.getKey() + " failed");
+                            return;
+                        }
+                    }
 
-                    migrateKeysToNewNode(predId, serverId, serverId);    //move keys to new node
+                    // phase two: each holder sends what changed since its copy and forwards its ranges from then
+                    // on; a holder that fails keeps all of its ranges, so its positions are left out
+                    List<Long> placed = new ArrayList<>();
+                    for (Map.Entry<Long, StringBuilder> e : given.entrySet()) {
+                        String reply = handOver(e.getKey(), holderAt.get(e.getKey()),
+                                                "cutover " + target + " " + after.epoch + e.getValue());
+                        if (reply.startsWith("moved")) {
+                            for (long t : tokens) 
+                                if (holders.get(t).startsWith(e.getKey() + " ")) placed.add(t);
+                        } else if (placed.isEmpty()) {
+                            for (Map.Entry<Long, StringBuilder> d : given.entrySet())
+                                handOver(d.getKey(), holderAt.get(d.getKey()), "dropcopy" + d.getValue());
+                            System.out.println("Server " + serverId + " not admitted, cutover at " + e.getKey() + " failed: " + reply);
+                            session.println("err cutover at " + e.getKey() + " failed");
+                            return;
+                        } else {
+                            System.out.println("Cutover at " + e.getKey() + " failed, its ranges stay there: " + reply);
+                        }
+                    }
+                    addTokens(placed, serverId, info);
+                    RingSnapshot r = ring;
+                    migration.settled(r.epoch);
 
-                    System.out.println("Server " + serverId + " has entered the ring.");
-                    System.out.println("Current ring: " + serverRing.keySet());
+                    // update successor and predecessor
+                    long succId = r.token(r.next(r.indexOf(serverId)));
+                    long predId = r.predecessor(serverId);
+                
+                    // send neighbour info back to entering node, then "<from> <to> <holder> <ip> <port>"
+                    // for every range it now owns, its keys already there
+                    StringBuilder ranges = new StringBuilder();
+                    for (long t : placed)
+                        ranges.append(' ').append(r.predecessor(t)).append(' ').append(t).append(' ').append(holders.get(t));
+                    session.println("neighbors " + predId + " " + r.serverAt(predId).ip + " " + r.serverAt(predId).port + " " 
+                                            + succId + " " + r.serverAt(succId).ip + " " + r.serverAt(succId).port + " "
+                                            + newIp + ranges);
+
+                    for (long t : placed)
+                        cache.invalidateRange(r.predecessor(t), t);
+
+                    System.out.println("Server " + serverId + " has entered the ring"
+                                       + (placed.size() > 1 ? " at " + placed : "") + ".");
+                    System.out.println("Current ring: " + ringKeys());
 
                     notifyNeighbor(predId, serverId, true);   // update successor
                     notifyNeighbor(succId, serverId, false);  // update predecessor
+                    Set<Long> changed = new HashSet<>(given.keySet());
+                    changed.add(serverId);
+                    publishRing(hadVirtual, changed);
+                    updateReplicas();
+                }
 
-                } else if ("exit".equalsIgnoreCase(command)) {
+            } else if ("exit".equalsIgnoreCase(command)) {
+                synchronized (membership) {
                     //int serverId = Integer.parseInt(parts[1]);
-                    int leavingId = Integer.parseInt(parts[1]);
+                    long leavingId = Long.parseLong(parts[1]);
 
                     // update successor and predecessor
-                    int succId = serverRing.higherKey(leavingId) != null ?
-                                  serverRing.higherKey(leavingId) :
-                                  serverRing.firstKey();
-                    int predId = serverRing.lowerKey(leavingId) != null ?
-                                  serverRing.lowerKey(leavingId) :
-                                  serverRing.lastKey();
-                    
-                    ServerInfo succInfo = serverRing.get(succId);
-                    ServerInfo predInfo = serverRing.get(predId);
+                    RingSnapshot before = ring;
+                    long succId = before.successor(leavingId + 1);
+                    long predId = before.predecessor(leavingId);
+                
+                    ServerInfo succInfo = before.serverAt(succId);
+                    ServerInfo predInfo = before.serverAt(predId);
+                    boolean hadVirtual = before.virtual();
                     // send neighbour info back to leaving node
 
-                    try (Socket s = new Socket(
-                            socket.getInetAddress().getHostAddress(), // back to leaver
-                            Integer.parseInt(parts.length == 3 ? parts[2] : "0"))) {
-
+                    try (Socket s = new Socket()) {
+                        s.connect(new InetSocketAddress(session.remoteHost(), // back to leaver
+                                  Integer.parseInt(parts.length == 3 ? parts[2] : "0")), PeerPool.CONNECT_MS);
                     } catch (Exception ignore) {
                         //ignore
                     }
 
-                    serverRing.remove(leavingId);
-                    
+                    // every position of the leaver goes, its range falls to the next one clockwise
+                    List<Long> tokens = before.tokensOf(leavingId);
+                    for (long t : tokens)
+                        cache.invalidateRange(before.predecessor(t), t);
+                    RingSnapshot r = before.without(leavingId);
+                    setRing(r);
+                    boolean tookOver = false;
+                    for (long t : tokens)
+                        tookOver |= r.owner(r.successorIndex(t)) == id;
+                    succId = r.successor(leavingId);        // the leaver's own positions may have been its neighbours
+                    predId = r.predecessor(succId);
+                
                     notifyNeighbor(predId, succId, true);   // new succ
                     notifyNeighbor(succId, predId, false);  // new pred
+                    Set<Long> heirs = new HashSet<>();
+                    for (long t : tokens) 
+                        heirs.add(r.owner(r.successorIndex(t)));
+                    publishRing(hadVirtual, heirs);
+                    updateReplicas();
+                    if (tookOver) 
+                        replicator.push(ownedKeys());        // we took over (part of) the leaver's range
+                    session.println("ok");
 
                     System.out.println("Server " + leavingId + " has exited the ring.");
-                    System.out.println("Current ring: " + serverRing.keySet());
+                    System.out.println("Current ring: " + ringKeys());
+                }
+            
+            } else if ("getkeys".equalsIgnoreCase(command)) {
+                long from = Long.parseLong(parts[1]);    // predecessor ID
+                long to   = Long.parseLong(parts[2]);    // requester ID
+
+                // collect (from, to] keys, removing them here
+                NavigableMap<Long, String> send = keyValueStore.extractRange(from, to);
+
+                session.println("count " + send.size());
+                long bytes = 0;
+                for (Map.Entry<Long, String> e : send.entrySet()) {
+                    String kv = e.getKey() + " " + e.getValue();
+                    session.println(kv);
+                    bytes += kv.length() + 1;
+                }
+                metrics.count("moved.keys", send.size());
+                metrics.count("moved.bytes", bytes);
+
+            } else if ("transfer".equalsIgnoreCase(command)) {       // chunk of a handoff
+                Transfer.receive(session, parts);
+
+            } else if ("commit".equalsIgnoreCase(command)) {
+                Transfer.commit(session, Long.parseLong(parts[1]), Long.parseLong(parts[2]), keyValueStore, replicator);
+
+            } else if ("insert".equalsIgnoreCase(command)) {          // key value, the value is the rest of the line
+                long key  = Ring.key(parts[1]);
                 
-                } else if ("getkeys".equalsIgnoreCase(command)) {
-                    int from = Integer.parseInt(parts[1]);   // predecessor ID
-                    int to   = Integer.parseInt(parts[2]);   // requester ID
-
-                    List<Integer> send = new ArrayList<>();
-                        keyValueStore.forEach((k,v) -> {         // collect (from, to] keys
-                            if (inRange(from, to, k)) send.add(k);
-                    });
-
-                    out.println("count " + send.size());
-                    for (int k : send) {
-                        out.println(k + " " + keyValueStore.get(k));
-                        keyValueStore.remove(k);             // migrate to new server
+                String val= Ring.rest(input.trim(), 2);
+                session.println(val == null ? "err no value" : route("insert", key, val, Ring.MAX_HOPS));
+
+            } else if ("hop".equalsIgnoreCase(command)) {             // ttl ms verb key [value], a routed request passed on
+                String[] h = input.trim().split(" ", 6);
+                if (!Ring.routed(h[3]))
+                    session.println("err unknown command " + h[3]);
+                else if (h[3].equalsIgnoreCase("insert") && h.length < 6)
+                    session.println("err no value");
+                else
+                    session.println(route(h[3].toLowerCase(), Ring.key(h[4]), h.length > 5 ? h[5] : null,
+                                          Integer.parseInt(h[1]), PeerPool.deadline(Long.parseLong(h[2]))));
+
+            } else if ("lookup".equalsIgnoreCase(command) || "delete".equalsIgnoreCase(command)) {
+                long key = Ring.key(parts[1]);
+                int ttl = parts.length > 2 ? Integer.parseInt(parts[2]) : Ring.MAX_HOPS;
+                session.println(route(command.toLowerCase(), key, null, ttl));
+
+            } else if ("req".equalsIgnoreCase(command)) {            // req <id> <verb> <args...>
+                String reqId = parts[1];
+                String request = Ring.rest(input.trim(), 2);
+                long queuedAt = System.nanoTime();
+                clientRequests.execute(() -> {
+                    session.println("res " + reqId + " " + (request == null ? "err bad request" : clientRequest(request)));
+                    metrics.record("client." + (request == null ? "" : parts[2].toLowerCase()),
+                                   System.nanoTime() - queuedAt);
+                });
+
+            } else if ("stats".equalsIgnoreCase(command)) {
+                session.println(metrics.line());
+
+            } else if ("load".equalsIgnoreCase(command)) {            // [reset], requests per range we own
+                session.println(load.report(parts.length > 1 && parts[1].equalsIgnoreCase("reset")));
+
+            } else if ("ring".equalsIgnoreCase(command)) {            // every position and its server
+                session.println("ring " + ring.table());
+
+            } else if ("gossip".equalsIgnoreCase(command)) {          // epoch of the sender's table
+                session.println(Gossip.answer(ring, Long.parseLong(parts[1])));
+
+            } else if ("setring".equalsIgnoreCase(command)) {         // a newer table pushed by gossip
+                adoptRing(input);
+                session.println("ok");
+
+            } else if ("scan".equalsIgnoreCase(command)) {           // from to [limit], in key order
+                new Scan(ring, id, keyValueStore, peers).run(session, Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                                                             parts.length > 3 ? Long.parseLong(parts[3]) : Long.MAX_VALUE);
+
+            } else if ("mget".equalsIgnoreCase(command) || "mput".equalsIgnoreCase(command)
+                       || "mdelete".equalsIgnoreCase(command)) {   // n [ttl], then n keys (with values for mput)
+                boolean caching = cache.enabled();
+                boolean track = !"mget".equalsIgnoreCase(command) && (caching || Replicator.READ_ANY);
+                List<Long> written = new ArrayList<>();
+                Batch.serve(session, parts, peers, migration.serving(), () -> ring.epoch, key -> {
+                    if (track) {
+                        if (caching) cache.invalidate(key);
+                        written.add(key);
                     }
+                    return batchTarget(key);
+                }, (verb, k, v, o) -> {
+                    RingSnapshot r = ring;
+                    for (long key : k) load.record(r.successor(key), key);
+                    Batch.apply(keyValueStore, replicator, verb, k, v, o);
+                });
+                if (caching)
+                    written.forEach(cache::invalidate);         // drop anything read while the writes were in flight
+                if (Replicator.READ_ANY)
+                    written.forEach(replicaStore::remove);
+
+            } else if ("range".equalsIgnoreCase(command)) {          // lo hi limit, a page of our own keys
+                Scan.serveRange(session, keyValueStore, Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                                Integer.parseInt(parts[3]));
+
+            } else if ("findsucc".equalsIgnoreCase(command)) {       // full ring is known here
+                RingSnapshot r = ring;
+                int at = r.successorIndex(Long.parseLong(parts[1]));
+                long owner = r.token(at);
+                ServerInfo info = r.server(at);
+                session.println("succ " + owner + " " + info.ip + " " + info.port);
+
+            } else if ("replicate".equalsIgnoreCase(command)) {
+                Replicator.receive(session, Integer.parseInt(parts[1]), replicaStore);
+
+            } else if ("succlist".equalsIgnoreCase(command)) {
+                StringBuilder sb = new StringBuilder("succs");
+                for (long sid : successorsOf(id, Math.max(1, Replicator.FACTOR))) {
+                    ServerInfo info = ring.serverAt(sid);
+                    sb.append(" ").append(sid).append(" ").append(info.ip).append(" ").append(info.port);
+                }
+                session.println(sb.toString());
 
-                } else if ("insert".equalsIgnoreCase(command)) {
-                    int key   = Integer.parseInt(parts[1]);
-                    
-                    String val= parts[2];
-                    keyValueStore.put(key, val);
-                    out.println("ok");
+            } else if ("getpred".equalsIgnoreCase(command)) {
+                long predId = ring.predecessor(id);
+                ServerInfo info = ring.serverAt(predId);
+                session.println("pred " + predId + " " + info.ip + " " + info.port);
 
-                } else {
-                    System.out.println("Unknown message: " + input);
-                }
-            } catch (IOException e) {
-                System.out.println("Error in ServerHandler: " + e.getMessage());
+            } else {
+                System.out.println("Unknown message: " + input);
             }
         }
 
 
         // helper to let a neighbour know about new succ/pred
-        private void notifyNeighbor(int targetId, int newNeighbor, boolean isSucc) {
-            if (targetId == 0)
+        private void notifyNeighbor(long targetId, long newNeighbor, boolean isSucc) {
+            if (targetId == 0 || physicalOf(targetId) == id)
                 return; // Bootstrap keeps full map anyway
             
-            ServerInfo t = serverRing.get(targetId);
+            RingSnapshot r = ring;
+            ServerInfo t = r.serverAt(targetId);
             
             if (t == null) 
                 return;
 
-            try (Socket s = new Socket(t.ip, t.port);
-                     PrintWriter out = new PrintWriter(s.getOutputStream(), true)) {
-                // Send the message to the target server
-                //out.println((isSucc ? "setsucc" : "setpred") + " " + newNeighbor + " " + 
-                //    serverRing.get(newNeighbor).port);
-                out.println((isSucc ? "setsucc" : "setpred") + " " +
-                    newNeighbor + " " +
-                    serverRing.get(newNeighbor).ip + " " +
-                    serverRing.get(newNeighbor).port);
-
-            } catch (IOException ignore) {
-                //ignore
-            }
-        }
-
-        //move keys (predId, serverId) from Bootstrap store → new node
-        private void migrateKeysToNewNode(int predId, int newId, int targetId) {
-            ServerInfo target = serverRing.get(targetId);
-            
-            if (target == null) 
-                return;
-
-            List<Integer> toMove = new ArrayList<>();
-            
-            keyValueStore.keySet().forEach(k -> {
-                if (inRange(predId, newId, k)) toMove.add(k);
-            });
-
-            for (int k : toMove) {
-                String v = keyValueStore.remove(k);
-                remoteCommand(targetId, "insert " + k + " " + v);
-            }
-        }
-
-        //check if key is in range of predId and serverId
-        private boolean inRange(int pred, int curr, int key) {
-            if (pred < curr) return key > pred && key <= curr;
-            // wrap‑around
-            return key > pred || key <= curr;
+            // Send the message to the target server
+            //out.println((isSucc ? "setsucc" : "setpred") + " " + newNeighbor + " " + 
+            //    serverRing.get(newNeighbor).port);
+            peers.send(t, (isSucc ? "setsucc" : "setpred") + " " +
+                newNeighbor + " " +
+                r.serverAt(newNeighbor).ip + " " +
+                r.serverAt(newNeighbor).port);
         }
     }
 
@@ -349,7 +889,7 @@ public class BootstrapServer {
         }
 
         BufferedReader br = new BufferedReader(new FileReader(args[0]));
-        int id = Integer.parseInt(br.readLine().trim());
+        long id = Long.parseLong(br.readLine().trim());
         int port = Integer.parseInt(br.readLine().trim());
         br.close();
 
@@ -357,17 +897,3 @@ public class BootstrapServer {
         server.start();
     }
 }
-
-class ServerInfo {
-    String ip;
-    int port;
-
-    ServerInfo(String ip, int port) {
-        this.ip = ip;
-        this.port = port;
-    }
-
-    public String toString() {
-        return ip + ":" + port;
-    }
-}
@@ -0,0 +1,362 @@
+package hashing;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// seeds the ring from a "<key> <value>" file: slices of the file are memory-mapped and parsed
+// by several threads, and every entry is streamed in transfer frames straight to the server
+// owning it under the given ring, one connection per server; our own share goes into the local
+// store. keys are hashed from the mapped bytes, so only values we keep ever become Strings.
+// a repeated key ends up with its last line's value whichever slice finishes first: each server
+// gets its frames, tagged with their slice, in slice order and local entries reach the store in
+// slice order, a slice that gets ahead holding its output back. each server applies what it got
+// every COMMIT_FRAMES frames, and at most 2 * THREADS slices are parsed and not yet sent on, so
+// neither side holds more than a few slices of the file however big it is
+final class BulkLoader {
+    private static final int THREADS = Integer.getInteger("bulk.threads", Runtime.getRuntime().availableProcessors());
+    private static final long REGION = 32L << 20;       // most of the file one task maps at once
+    private static final int MAX_LINE = 1 << 20;
+    private static final int LOCAL_BATCH = 65536;
+    private static final int COMMIT_FRAMES = Integer.getInteger("bulk.commitFrames", 32);   // per server between commits
+
+    private final RingSnapshot ring;
+    private final long self;
+    private final KeyValueStore local;
+    private final PeerPool peers;
+    private final ConcurrentHashMap<Long, Transfer.Stream> streams = new ConcurrentHashMap<>();
+    private final LongAdder kept = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final Map<Integer, Batches> waiting = new HashMap<>();   // finished slices after an unfinished one
+    private int applied;                                // slices before this have all their output sent or stored
+    private final Semaphore ahead = new Semaphore(2 * THREADS);     // slices started and not yet sent on
+    private volatile boolean failed;
+
+    //with an empty ring, e.g. while the bootstrap is still starting, everything is ours
+    BulkLoader(RingSnapshot ring, long self, KeyValueStore local, PeerPool peers) {
+        this.ring = ring;
+        this.self = self;
+        this.local = local;
+        this.peers = peers;
+    }
+
+    //every line after the first skipLines; returns the number of entries loaded
+    long load(Path file, int skipLines) throws IOException {
+        long start = System.nanoTime();
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            long first = skip(ch, size, skipLines);
+            long data = size - first;
+            int tasks = data < MAX_LINE ? 1 : (int) Math.max(THREADS, (data + REGION - 1) / REGION);
+
+            ExecutorService pool = Executors.newFixedThreadPool(Math.min(THREADS, tasks), r -> {
+                Thread t = new Thread(r, "bulk-load");
+                t.setDaemon(true);
+                return t;
+            });
+            List<Future<?>> parts = new ArrayList<>();
+            for (int i = 0; i < tasks; i++) {
+                long from = first + data * i / tasks;
+                long to   = first + data * (i + 1) / tasks;
+                int slice = i;
+                parts.add(pool.submit(() -> {
+                    ahead.acquire();                    // tasks start in order, so the earliest unsent slice is running
+                    if (failed)
+                        return null;
+                    try {
+                        parse(ch, first, from, to, size, slice);
+                    } catch (IOException | RuntimeException e) {
+                        failed = true;
+                        ahead.release(tasks);           // the slices after this one will never be sent on
+                        throw e;
+                    }
+                    return null;
+                }));
+            }
+            pool.shutdown();
+
+            IOException failure = null;
+            for (Future<?> f : parts) {
+                try {
+                    f.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = new InterruptedIOException();
+                } catch (ExecutionException e) {
+                    if (failure == null) failure = asIOException(e.getCause());
+                }
+            }
+
+            long sent = 0;
+            for (Map.Entry<Long, Transfer.Stream> e : streams.entrySet()) {
+                Transfer.Stream s = e.getValue();
+                try {
+                    if (failure != null) {
+                        s.abort();
+                        continue;
+                    }
+                    s.commit();
+                    sent += s.count();
+                } catch (IOException ex) {
+                    s.abort();
+                    failure = new IOException("server " + e.getKey() + ": " + ex.getMessage(), ex);
+                }
+            }
+            if (failure != null)
+                throw failure;
+
+            long ms = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+            System.out.println("Bulk loaded " + (kept.sum() + sent) + " entries from " + file + " (" + kept.sum() + " kept, "
+                               + sent + " to " + streams.size() + " servers, " + skipped.sum() + " lines skipped) in "
+                               + ms + " ms, " + data / 1000 / ms + " MB/s");
+            return kept.sum() + sent;
+        }
+    }
+
+    //offset just past the first n lines
+    private static long skip(FileChannel ch, long size, int n) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(8192);
+        long at = 0;
+        while (n > 0 && at < size) {
+            buf.clear();
+            int read = ch.read(buf, at);
+            if (read <= 0)
+                break;
+            for (int i = 0; i < read; i++) {
+                if (buf.get(i) == '\n' && --n == 0) return at + i + 1;
+            }
+            at += read;
+        }
+        return n > 0 ? size : at;
+    }
+
+    //the lines starting in [from, to); the one running into from belongs to the previous slice
+    private void parse(FileChannel ch, long first, long from, long to, long size, int slice) throws IOException {
+        long mapFrom = from > first ? from - 1 : from;
+        long mapTo = Math.min(size, to + MAX_LINE);
+        if (mapTo <= mapFrom)
+            return;
+        MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, mapFrom, mapTo - mapFrom);
+        int end = (int) (to - mapFrom);
+        int pos = 0;
+        if (from > first) {
+            while (pos < buf.limit() && buf.get(pos) != '\n') pos++;
+            pos++;
+        }
+
+        Batches out = new Batches(slice);
+        while (pos < end) {
+            int eol = pos;
+            while (eol < buf.limit() && buf.get(eol) != '\n') eol++;
+            if (eol == buf.limit() && mapTo < size)
+                throw new IOException("line longer than " + MAX_LINE + " bytes at offset " + (mapFrom + pos));
+            line(buf, pos, eol, out);
+            pos = eol + 1;
+        }
+        out.flush();
+    }
+
+    //"<key> <value>" with surrounding blanks trimmed; anything else is skipped like the old loader did
+    private void line(MappedByteBuffer buf, int s, int e, Batches out) throws IOException {
+        while (s < e && blank(buf.get(s))) s++;
+        while (e > s && blank(buf.get(e - 1))) e--;
+        int sp = s;
+        while (sp < e && buf.get(sp) != ' ') sp++;
+        boolean ok = sp > s && sp + 1 < e;
+        for (int i = sp + 1; ok && i < e; i++) ok = buf.get(i) != ' ';
+        if (!ok) {
+            skipped.increment();
+            return;
+        }
+
+        // same position Ring.key would give, without building the key String
+        long k = 0;
+        long h = Ring.FNV_OFFSET;
+        boolean numeric = true, ascii = true;
+        for (int i = s; i < sp; i++) {
+            byte b = buf.get(i);
+            int d = b - '0';
+            if (numeric && (d < 0 || d > 9 || k > (Ring.SIZE - 1) / 10)) numeric = false;
+            if (numeric) k = k * 10 + d;
+            ascii &= b >= 0;
+            h = (h ^ (b & 0xff)) * Ring.FNV_PRIME;
+        }
+        long key = numeric && k < Ring.SIZE ? k
+                 : ascii ? Ring.spread(h)
+                 : Ring.hash(decode(buf, s, sp));
+
+        if (ring.isEmpty()) {
+            out.keep(key, decode(buf, sp + 1, e));
+            return;
+        }
+        int at = ring.successorIndex(key);
+        long owner = ring.owner(at);
+        if (owner == self) {
+            out.keep(key, decode(buf, sp + 1, e));
+        } else {
+            out.send(owner, at, key, buf, sp + 1, e);
+        }
+    }
+
+    private static boolean blank(byte b) {
+        return b >= 0 && b <= ' ';
+    }
+
+    private static String decode(MappedByteBuffer buf, int from, int to) {
+        byte[] b = new byte[to - from];
+        buf.get(from, b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private Transfer.Stream stream(long owner, int at) {
+        return streams.computeIfAbsent(owner, o -> {
+            try {
+                return new Transfer.Stream(peers, ring.server(at), o, o);     // (o, o]: anywhere on the ring
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private static IOException asIOException(Throwable t) {
+        if (t instanceof IOException) return (IOException) t;
+        if (t instanceof UncheckedIOException) return ((UncheckedIOException) t).getCause();
+        return new IOException(t);
+    }
+
+    // one slice's pending output: a frame per remote owner and a batch for the local store, held
+    // back while an earlier slice is still loading
+    private class Batches {
+        private final int slice;
+        private final Map<Long, Frame> frames = new HashMap<>();
+        private final Map<Long, Integer> positions = new HashMap<>();   // owner -> a ring index of it
+        private final Map<Long, String> mine = new HashMap<>();
+        private final List<Held> held = new ArrayList<>();             // full frames, in the order they filled
+        private boolean head;                           // every earlier slice is out, ours go out as they fill
+
+        Batches(int slice) {
+            this.slice = slice;
+        }
+
+        void keep(long key, String value) {
+            mine.put(key, value);
+            kept.increment();
+            if (mine.size() % LOCAL_BATCH == 0)            // held back ones retry every batch
+                flushLocal();
+        }
+
+        void send(long owner, int at, long key, MappedByteBuffer buf, int from, int to) throws IOException {
+            Frame f = frames.computeIfAbsent(owner, o -> new Frame());
+            positions.putIfAbsent(owner, at);
+            f.add(key, buf, from, to);
+            if (f.n == Transfer.CHUNK)
+                emit(owner, f);
+        }
+
+        //end of the slice: its output goes out now if every earlier slice's has, with that of any later
+        //slices that finished meanwhile, else once they do
+        void flush() throws IOException {
+            for (Map.Entry<Long, Frame> e : frames.entrySet()) {
+                if (e.getValue().n > 0) emit(e.getKey(), e.getValue());
+            }
+            synchronized (waiting) {
+                if (applied != slice) {
+                    waiting.put(slice, this);
+                    return;
+                }
+                Batches next = this;
+                do {
+                    next.sendHeld();
+                    local.putAll(next.mine);
+                    next.mine.clear();
+                    applied++;
+                    ahead.release();
+                } while ((next = waiting.remove(applied)) != null);
+            }
+        }
+
+        private boolean head() {
+            if (!head) {
+                synchronized (waiting) {
+                    head = applied == slice;
+                }
+            }
+            return head;
+        }
+
+        private void emit(long owner, Frame f) throws IOException {
+            if (head()) {
+                sendHeld();
+                ship(owner, f.data, f.len, f.n);
+            } else {
+                held.add(new Held(owner, Arrays.copyOf(f.data, f.len), f.n));
+            }
+            f.len = 0;
+            f.n = 0;
+        }
+
+        private void sendHeld() throws IOException {
+            for (Held h : held) ship(h.owner, h.data, h.data.length, h.n);
+            held.clear();
+        }
+
+        private void ship(long owner, byte[] data, int len, int n) throws IOException {
+            Transfer.Stream s = stream(owner, positions.get(owner));
+            s.frame(data, len, n, slice + 1);
+            if (s.uncommitted() >= COMMIT_FRAMES)
+                s.checkpoint();
+        }
+
+        private void flushLocal() {
+            if (!head())
+                return;                                 // keep them until the slices before us are in
+            local.putAll(mine);
+            mine.clear();
+        }
+    }
+
+    private static final class Held {
+        final long owner;
+        final byte[] data;
+        final int n;
+
+        Held(long owner, byte[] data, int n) {
+            this.owner = owner;
+            this.data = data;
+            this.n = n;
+        }
+    }
+
+    // "<position> <value>\n" lines in a reusable buffer
+    private static class Frame {
+        byte[] data = new byte[1 << 15];
+        int len;
+        int n;
+
+        void add(long key, MappedByteBuffer buf, int from, int to) {
+            int need = 21 + to - from;
+            if (len + need > data.length)
+                data = Arrays.copyOf(data, Math.max(data.length * 2, len + need));
+            int start = len;
+            do {
+                data[len++] = (byte) ('0' + key % 10);
+                key /= 10;
+            } while (key > 0);
+            for (int i = start, j = len - 1; i < j; i++, j--) {
+                byte t = data[i];
+                data[i] = data[j];
+                data[j] = t;
+            }
+            data[len++] = ' ';
+            buf.get(from, data, len, to - from);
+            len += to - from;
+            data[len++] = '\n';
+            n++;
+        }
+    }
+}
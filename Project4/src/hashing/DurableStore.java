@@ -0,0 +1,403 @@
+package hashing;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+// write-ahead log and periodic snapshots around another store.
+// files in dir: wal-<seq>.log, snapshot-<seq>.dat (= state before wal-<seq>)
+class DurableStore implements KeyValueStore {
+    private static final byte PUT = 'P', DEL = 'D', RANGE = 'R';
+    private static final int STRIPES = 64;
+    private static final long WINDOW = Long.getLong("recover.windowBytes", Integer.MAX_VALUE);  // one map's limit
+
+    private final KeyValueStore base;
+    private final Path dir;
+    private final boolean syncWrites = Boolean.parseBoolean(System.getProperty("wal.sync", "true"));
+
+    // point writes hold the read side plus their key's stripe, so a key's log order matches
+    // its apply order; range ops and snapshots take the write side
+    private final ReentrantReadWriteLock order = new ReentrantReadWriteLock();
+    private final Object[] stripes = new Object[STRIPES];
+
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private FileChannel log;                    // owned by the writer thread after start
+    private long seq;
+    private volatile long unsnapshotted = 0;    // records since the last snapshot
+
+    DurableStore(KeyValueStore base, Path dir) throws IOException {
+        this.base = base;
+        this.dir = dir;
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Object();
+        Files.createDirectories(dir);
+
+        long start = System.nanoTime();
+        long snapSeq = recover();
+        seq = Math.max(snapSeq, maxSeq("wal-", ".log")) + 1;
+        log = openLog(seq);
+        System.out.println("Recovered " + base.size() + " keys from " + dir + " in "
+                           + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+        Thread writer = new Thread(this::writeLoop, "wal-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        long every = Long.getLong("snapshot.ms", 60_000);
+        ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "snapshotter");
+            t.setDaemon(true);
+            return t;
+        });
+        snapshots.scheduleWithFixedDelay(this::snapshotQuietly, every, every, TimeUnit.MILLISECONDS);
+    }
+
+    public String get(long key) {
+        return base.get(key);
+    }
+
+    // every write is logged first and reaches base only once the log has it (fsynced with
+    // -Dwal.sync), so readers never see a write a crash would lose and a failed append changes nothing
+    public String put(long key, String value) {
+        order.readLock().lock();
+        try {
+            synchronized (stripe(key)) {
+                await(append(record(PUT, key, value)));
+                return base.put(key, value);
+            }
+        } finally {
+            order.readLock().unlock();
+        }
+    }
+
+    public String remove(long key) {
+        order.readLock().lock();
+        try {
+            synchronized (stripe(key)) {
+                if (base.get(key) == null)
+                    return null;
+                await(append(record(DEL, key, null)));
+                return base.remove(key);
+            }
+        } finally {
+            order.readLock().unlock();
+        }
+    }
+
+    public boolean remove(long key, String expected) {
+        order.readLock().lock();
+        try {
+            synchronized (stripe(key)) {
+                if (!expected.equals(base.get(key)))
+                    return false;
+                await(append(record(DEL, key, null)));
+                return base.remove(key, expected);
+            }
+        } finally {
+            order.readLock().unlock();
+        }
+    }
+
+    public void putAll(Map<Long, String> entries) {
+        Pending last = null;
+        order.writeLock().lock();
+        try {
+            for (Map.Entry<Long, String> e : entries.entrySet())
+                last = append(record(PUT, e.getKey(), e.getValue()));
+            await(last);                        // the writer completes in queue order
+            base.putAll(entries);
+        } finally {
+            order.writeLock().unlock();
+        }
+    }
+
+    public void removeAll(Map<Long, String> expected) {
+        Pending last = null;
+        Map<Long, String> matched = new HashMap<>();
+        order.writeLock().lock();
+        try {
+            for (Map.Entry<Long, String> e : expected.entrySet()) {
+                if (e.getValue().equals(base.get(e.getKey()))) {
+                    matched.put(e.getKey(), e.getValue());
+                    last = append(record(DEL, e.getKey(), null));
+                }
+            }
+            await(last);
+            base.removeAll(matched);
+        } finally {
+            order.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        return base.size();
+    }
+
+    public NavigableMap<Long, String> extractRange(long pred, long curr) {
+        order.writeLock().lock();
+        try {
+            await(append(ByteBuffer.allocate(17).put(RANGE).putLong(pred).putLong(curr).flip()));
+            return base.extractRange(pred, curr);
+        } finally {
+            order.writeLock().unlock();
+        }
+    }
+
+    public NavigableMap<Long, String> range(long lo, long hi, int limit) {
+        return base.range(lo, hi, limit);
+    }
+
+    public NavigableMap<Long, String> snapshot() {
+        return base.snapshot();
+    }
+
+    private Object stripe(long key) {
+        return stripes[(int) Math.floorMod(key, (long) STRIPES)];
+    }
+
+    // [type][key: 8 bytes][length][utf-8 value]; a range is [type][pred: 8 bytes][curr: 8 bytes]
+    private static ByteBuffer record(byte type, long key, String value) {
+        byte[] v = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(13 + v.length).put(type).putLong(key).putInt(v.length).put(v).flip();
+    }
+
+    private Pending append(ByteBuffer rec) {
+        Pending p = new Pending(rec);
+        queue.add(p);
+        return p;
+    }
+
+    private void await(Pending p) {
+        if (p == null || !syncWrites) return;
+        try {
+            p.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new UncheckedIOException(new IOException("write-ahead log failed", e.getCause()));
+        }
+    }
+
+    //group commit: write everything queued, one fsync, then release all waiters
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, 8192);
+                List<ByteBuffer> run = new ArrayList<>();
+                for (Pending p : batch) {
+                    if (p.rotateTo > 0) {
+                        writeAll(run);
+                        log.force(false);
+                        log.close();
+                        log = openLog(p.rotateTo);
+                    } else {
+                        run.add(p.rec);
+                    }
+                }
+                writeAll(run);
+                log.force(false);
+                unsnapshotted += batch.size();
+                for (Pending p : batch) p.done.complete(null);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                System.out.println("Write-ahead log error: " + e.getMessage());
+                for (Pending p : batch) p.done.completeExceptionally(e);
+            }
+            batch.clear();
+        }
+    }
+
+    private void writeAll(List<ByteBuffer> run) throws IOException {
+        ByteBuffer[] bufs = run.toArray(new ByteBuffer[0]);
+        long left = 0;
+        for (ByteBuffer b : bufs) left += b.remaining();
+        while (left > 0) left -= log.write(bufs);                 // gathering write
+        run.clear();
+    }
+
+    private void snapshotQuietly() {
+        try {
+            if (unsnapshotted > 0) snapshotNow();
+        } catch (IOException e) {
+            System.out.println("Snapshot failed: " + e.getMessage());
+        }
+    }
+
+    //switch to a new log and capture the state before it, then drop older files
+    void snapshotNow() throws IOException {
+        NavigableMap<Long, String> state;
+        long snapSeq;
+        order.writeLock().lock();
+        try {
+            snapSeq = ++seq;
+            Pending rotate = new Pending(null);
+            rotate.rotateTo = snapSeq;
+            queue.add(rotate);
+            state = base.snapshot();
+            unsnapshotted = 0;
+        } finally {
+            order.writeLock().unlock();
+        }
+
+        Path tmp = dir.resolve("snapshot-" + snapSeq + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(state.size());
+            for (Map.Entry<Long, String> e : state.entrySet()) {
+                byte[] v = e.getValue().getBytes(StandardCharsets.UTF_8);
+                out.writeLong(e.getKey());
+                out.writeInt(v.length);
+                out.write(v);
+            }
+        }
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            ch.force(true);
+        }
+        Files.move(tmp, dir.resolve("snapshot-" + snapSeq + ".dat"), StandardCopyOption.ATOMIC_MOVE);
+
+        for (Path old : list()) {
+            String name = old.getFileName().toString();
+            long s = seqOf(name);
+            if ((name.startsWith("wal-") && s < snapSeq) || (name.startsWith("snapshot-") && s < snapSeq))
+                Files.deleteIfExists(old);
+        }
+    }
+
+    //load the newest snapshot through a memory map, then replay the logs written after it
+    private long recover() throws IOException {
+        long snapSeq = maxSeq("snapshot-", ".dat");
+        if (snapSeq > 0) {
+            Path file = dir.resolve("snapshot-" + snapSeq + ".dat");
+            try (FileChannel ch = FileChannel.open(file)) {
+                Mapped in = new Mapped(ch);
+                if (!in.ensure(4))
+                    throw new IOException("truncated snapshot " + file);
+                int n = in.buf.getInt();
+                Map<Long, String> chunk = new HashMap<>();
+                for (int i = 0; i < n; i++) {
+                    if (!in.ensure(12))
+                        throw new IOException("truncated snapshot " + file);
+                    long key = in.buf.getLong();
+                    byte[] v = new byte[in.buf.getInt()];
+                    if (!in.ensure(v.length))
+                        throw new IOException("truncated snapshot " + file);
+                    in.buf.get(v);
+                    chunk.put(key, new String(v, StandardCharsets.UTF_8));
+                    if (chunk.size() == 65536) {
+                        base.putAll(chunk);
+                        chunk.clear();
+                    }
+                }
+                base.putAll(chunk);
+            }
+        }
+
+        List<Path> logs = new ArrayList<>();
+        for (Path p : list()) {
+            String name = p.getFileName().toString();
+            if (name.startsWith("wal-") && seqOf(name) >= snapSeq) logs.add(p);
+        }
+        logs.sort(Comparator.comparingLong(p -> seqOf(p.getFileName().toString())));
+        for (Path p : logs) replay(p);
+        return snapSeq;
+    }
+
+    private void replay(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file)) {
+            Mapped in = new Mapped(ch);
+            while (in.ensure(13)) {
+                ByteBuffer buf = in.buf;
+                byte type = buf.get();
+                long a = buf.getLong();
+                if (type == RANGE) {
+                    if (!in.ensure(8)) 
+                        break;
+                    base.extractRange(a, in.buf.getLong());
+                    continue;
+                }
+                int b = buf.getInt();
+                if (type == DEL) {
+                    base.remove(a);
+                } else if (type == PUT && b >= 0 && in.ensure(b)) {
+                    byte[] v = new byte[b];
+                    in.buf.get(v);
+                    base.put(a, new String(v, StandardCharsets.UTF_8));
+                } else {
+                    break;                      // torn tail from a crash mid-write
+                }
+            }
+        }
+    }
+
+    private FileChannel openLog(long s) throws IOException {
+        return FileChannel.open(dir.resolve("wal-" + s + ".log"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private List<Path> list() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            ds.forEach(files::add);
+        }
+        return files;
+    }
+
+    private long maxSeq(String prefix, String suffix) throws IOException {
+        long max = 0;
+        for (Path p : list()) {
+            String name = p.getFileName().toString();
+            if (name.startsWith(prefix) && name.endsWith(suffix)) max = Math.max(max, seqOf(name));
+        }
+        return max;
+    }
+
+    private static long seqOf(String name) {
+        try {
+            return Long.parseLong(name.substring(name.indexOf('-') + 1, name.indexOf('.')));
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    // a file read through maps of at most WINDOW bytes, the next one starting where reading got to,
+    // so files past 2 GiB load too; a record is read only once all of it is in the current map
+    private static final class Mapped {
+        private final FileChannel ch;
+        private long start;                         // file offset of buf
+        MappedByteBuffer buf;
+
+        Mapped(FileChannel ch) throws IOException {
+            this.ch = ch;
+            this.buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(WINDOW, ch.size()));
+        }
+
+        //false if the file has fewer than n bytes left
+        boolean ensure(int n) throws IOException {
+            if (buf.remaining() >= n)
+                return true;
+            long at = start + buf.position();
+            if (ch.size() - at < n || n > WINDOW)
+                return false;
+            start = at;
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, at, Math.min(WINDOW, ch.size() - at));
+            return true;
+        }
+    }
+
+    private static class Pending {
+        final ByteBuffer rec;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        long rotateTo = 0;
+
+        Pending(ByteBuffer rec) {
+            this.rec = rec;
+        }
+    }
+}
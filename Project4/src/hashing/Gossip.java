@@ -0,0 +1,89 @@
+package hashing;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.*;
+
+// push-pull anti-entropy for the ring table: every ROUND_MS a server sends "gossip <epoch>" to FANOUT
+// random other servers of its view. whichever side is behind takes the other's table, the reply
+// "ring <table>" or a "setring <table>" push, so a change made anywhere reaches all N servers in
+// about log N rounds and any of them can answer for the membership
+final class Gossip {
+    static final int ROUND_MS = Integer.getInteger("gossip.ms", 1000);
+    static final int FANOUT = Integer.getInteger("gossip.fanout", 2);
+
+    private final long self;
+    private final PeerPool peers;
+    private final Supplier<RingSnapshot> view;          // null while we are not in the ring
+    private final Consumer<String> adopt;               // a "ring <table>" line newer than the view
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private final ScheduledExecutorService rounds = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "gossip");
+        t.setDaemon(true);
+        return t;
+    });
+
+    Gossip(long self, PeerPool peers, Supplier<RingSnapshot> view, Consumer<String> adopt) {
+        this.self = self;
+        this.peers = peers;
+        this.view = view;
+        this.adopt = adopt;
+    }
+
+    void start() {
+        rounds.scheduleWithFixedDelay(this::round, ROUND_MS, ROUND_MS, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        rounds.shutdownNow();
+    }
+
+    //an extra round right away, e.g. after a hop to a server of our table failed
+    void soon() {
+        if (pending.compareAndSet(false, true))
+            rounds.execute(() -> {
+                pending.set(false);
+                round();
+            });
+    }
+
+    //the reply to "gossip <epoch>": our table if it is newer, else how far behind we are
+    static String answer(RingSnapshot r, long theirs) {
+        if (r == null) return "err not in the ring";
+        if (r.epoch > theirs) return "ring " + r.table();
+        return (r.epoch < theirs ? "behind " : "same ") + r.epoch;
+    }
+
+    private void round() {
+        RingSnapshot r = view.get();
+        if (r == null || r.size() < 2)
+            return;
+        for (ServerInfo s : pick(r)) {
+            try {
+                String reply = peers.call(s, "gossip " + r.epoch);
+                if (reply.startsWith("ring ")) {
+                    adopt.accept(reply);
+                    r = view.get();
+                } else if (reply.startsWith("behind ")) {
+                    peers.call(s, "setring " + r.table());
+                }
+            } catch (IOException | RuntimeException ignore) {
+                //another round will try someone else
+            }
+        }
+    }
+
+    //up to FANOUT distinct servers other than us
+    private List<ServerInfo> pick(RingSnapshot r) {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        List<ServerInfo> out = new ArrayList<>();
+        Set<Long> seen = new HashSet<>();
+        for (int tries = 0; out.size() < FANOUT && tries < 4 * FANOUT; tries++) {
+            int i = rnd.nextInt(r.size());
+            if (r.owner(i) != self && seen.add(r.owner(i))) out.add(r.server(i));
+        }
+        return out;
+    }
+}
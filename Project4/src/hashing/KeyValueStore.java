@@ -0,0 +1,69 @@
+package hashing;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+// ordered key/value storage shared by request handlers on many threads
+interface KeyValueStore {
+
+    String get(long key);
+
+    String put(long key, String value);
+
+    String remove(long key);
+
+    //remove only if still mapped to expected, so a concurrent update survives
+    boolean remove(long key, String expected);
+
+    void putAll(Map<Long, String> entries);
+
+    //conditional remove of every entry that still has the given value
+    default void removeAll(Map<Long, String> expected) {
+        expected.forEach(this::remove);
+    }
+
+    int size();
+
+    default boolean isEmpty() {
+        return size() == 0;
+    }
+
+    //atomically remove and return every key in (pred, curr], wrapping past the top of the ring
+    NavigableMap<Long, String> extractRange(long pred, long curr);
+
+    //up to limit entries with keys in [lo, hi] in key order, left in place
+    NavigableMap<Long, String> range(long lo, long hi, int limit);
+
+    //consistent copy of the whole store
+    NavigableMap<Long, String> snapshot();
+
+    //the configured store, kept in -Ddata.dir/<name> when that is set
+    static KeyValueStore open(String name) {
+        KeyValueStore store = create();
+        String dataDir = System.getProperty("data.dir");
+        if (dataDir == null) 
+            return store;
+        try {
+            return new DurableStore(store, Paths.get(dataDir, name));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //picked with -Dstore=<name>
+    static KeyValueStore create() {
+        return create(System.getProperty("store", "skiplist"));
+    }
+
+    static KeyValueStore create(String kind) {
+        switch (kind) {
+            case "skiplist":
+                return new SkipListStore();
+            case "packed":
+                return new PackedStore();
+            default:
+                throw new IllegalArgumentException("Unknown store: " + kind);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package hashing;
+
+import java.util.concurrent.atomic.*;
+
+// lock-free log-linear histogram in the style of HdrHistogram: 32 linear buckets per power of two,
+// so any recorded value is reported within ~3% of itself. counts are striped by thread so busy
+// handlers on many cores don't all hit the same cache line
+final class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = SUB * (64 - SUB_BITS) + SUB;
+    private static final int STRIPES = Integer.highestOneBit(Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+    private final AtomicLongArray[] counts = new AtomicLongArray[STRIPES];
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    LatencyHistogram() {
+        for (int i = 0; i < STRIPES; i++) counts[i] = new AtomicLongArray(BUCKETS);
+    }
+
+    void record(long value) {
+        if (value < 0) value = 0;
+        counts[(int) Thread.currentThread().getId() & (STRIPES - 1)].incrementAndGet(index(value));
+        total.increment();
+        sum.add(value);
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) { }
+    }
+
+    long count() {
+        return total.sum();
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    double mean() {
+        long n = count();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    //smallest recorded value with at least p percent of the recordings at or below it
+    long percentile(double p) {
+        long n = count();
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(n * p / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            for (AtomicLongArray c : counts) seen += c.get(i);
+            if (seen >= rank) return Math.min(upperBound(i), max());
+        }
+        return max();
+    }
+
+    // "n=.. p50=.. p90=.. p99=.. p99.9=.. max=.." with values divided by unit (e.g. 1000 for µs)
+    String summary(long unit, String suffix) {
+        return String.format("n=%d mean=%.1f%s p50=%d%s p90=%d%s p99=%d%s p99.9=%d%s max=%d%s",
+                count(), mean() / unit, suffix,
+                percentile(50) / unit, suffix, percentile(90) / unit, suffix,
+                percentile(99) / unit, suffix, percentile(99.9) / unit, suffix, max() / unit, suffix);
+    }
+
+    void reset() {
+        for (AtomicLongArray c : counts)
+            for (int i = 0; i < BUCKETS; i++) c.set(i, 0);
+        total.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    private static int index(long v) {
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(v) - SUB_BITS);
+        return SUB * shift + (int) (v >>> shift);
+    }
+
+    private static long upperBound(int index) {
+        if (index < 2 * SUB) return index;
+        int shift = index / SUB - 1;
+        long mantissa = index - SUB * shift;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
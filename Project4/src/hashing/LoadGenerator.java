@@ -0,0 +1,277 @@
+package hashing;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// starts a bootstrap and N name servers on loopback in this JVM, drives a lookup/insert/delete
+// mix at them with optional join/exit churn, then prints throughput and latency percentiles
+// per operation and per number of servers a request passed through
+public class LoadGenerator {
+    private static final String[] OPS = {"lookup", "insert", "delete"};
+
+    private final Map<String, String> opts;
+    private final int basePort;
+    private final PeerPool peers = new PeerPool();
+
+    private final List<NameServer> active = new CopyOnWriteArrayList<>();
+    private final List<NameServer> spare = new CopyOnWriteArrayList<>();
+    private final Map<NameServer, ServerInfo> address = new ConcurrentHashMap<>();
+    private BootstrapServer bootstrapServer;
+    private ServerInfo bootstrap;
+    private SmartClient smart;                              // -entry direct: straight to the owner
+
+    private final Map<String, LatencyHistogram> byOp = new TreeMap<>();
+    private final ConcurrentHashMap<Integer, LatencyHistogram> byHops = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+    private final AtomicInteger joins = new AtomicInteger();
+    private final AtomicInteger exits = new AtomicInteger();
+
+    LoadGenerator(Map<String, String> opts) {
+        this.opts = opts;
+        this.basePort = intOpt("port", 4000);
+        for (String op : OPS) byOp.put(op, new LatencyHistogram());
+    }
+
+    void run() throws Exception {
+        int nodes   = intOpt("nodes", 8);
+        int extra   = intOpt("spares", 2);                  // servers kept out of the ring for churn
+        int seconds = intOpt("seconds", 10);
+        int threads = intOpt("threads", 16);
+        long churn  = intOpt("churn", 0);                   // ms between joins/exits, 0 = none
+        String entry = opts.getOrDefault("entry", "any");
+        boolean viaBootstrap = "bootstrap".equals(entry);
+        int[] mix = parseMix(opts.getOrDefault("mix", "80:15:5"));
+        KeyChooser keys = new KeyChooser(keyCount(), Double.parseDouble(opts.getOrDefault("zipf", "0")));
+
+        PrintStream console = System.out;
+        if (!opts.containsKey("verbose"))
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));   // servers log a lot
+
+        startRing(nodes, extra);
+        Thread.sleep(intOpt("warmup", 5) * 1000L);          // let stabilization fill the finger tables
+        if ("direct".equals(entry))
+            smart = new SmartClient(bootstrap.ip, bootstrap.port);
+        console.println("Ring of " + (active.size() + 1) + " servers up on ports " + basePort + "-"
+                        + (basePort + nodes + extra) + ", " + seconds + "s with " + threads + " threads, mix "
+                        + opts.getOrDefault("mix", "80:15:5") + ", zipf " + opts.getOrDefault("zipf", "0")
+                        + (churn > 0 ? ", churn every " + churn + "ms" : ""));
+
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService pool = Executors.newFixedThreadPool(threads + 1);
+        for (int t = 0; t < threads; t++) {
+            pool.execute(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                while (System.nanoTime() < end) {
+                    int r = rnd.nextInt(100);
+                    String op = r < mix[0] ? "lookup" : r < mix[0] + mix[1] ? "insert" : "delete";
+                    String key = keyName(keys.next(rnd));
+                    ServerInfo target = viaBootstrap ? bootstrap : pickEntry(rnd);
+                    request(target, op, key);
+                }
+            });
+        }
+        if (churn > 0)
+            pool.execute(() -> churn(churn, end));
+        pool.shutdown();
+        pool.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+
+        System.setOut(console);
+        report(seconds);
+        if (smart != null) smart.close();
+        for (NameServer ns : address.keySet()) ns.close();
+        bootstrapServer.close();
+        peers.close();
+    }
+
+    private void startRing(int nodes, int extra) throws Exception {
+        Path config = Files.createTempFile("bn", ".txt");
+        List<String> lines = new ArrayList<>(List.of("0", String.valueOf(basePort)));
+        for (int k = 0; k < keyCount(); k++) lines.add(keyName(k) + " v" + k);
+        Files.write(config, lines);
+
+        bootstrapServer = new BootstrapServer(0, basePort, config.toString());
+        Files.delete(config);
+        bootstrapServer.startInBackground();
+        bootstrap = new ServerInfo("127.0.0.1", basePort);
+        awaitPort(basePort);
+
+        // ids spread over the ring, the bootstrap keeps 0
+        List<Long> ids = new ArrayList<>();
+        Random rnd = new Random(intOpt("seed", 1));
+        while (ids.size() < nodes + extra) {
+            long sid = 1 + Math.floorMod(rnd.nextLong(), Ring.SIZE - 1);
+            if (!ids.contains(sid)) ids.add(sid);
+        }
+        for (int i = 0; i < ids.size(); i++) {
+            int port = basePort + 1 + i;
+            NameServer ns = new NameServer(ids.get(i), port, "127.0.0.1", basePort);
+            ns.startServices();
+            awaitPort(port);
+            address.put(ns, new ServerInfo("127.0.0.1", port));
+            if (i < nodes) {
+                ns.performEntry();
+                active.add(ns);
+            } else {
+                spare.add(ns);
+            }
+        }
+    }
+
+    private ServerInfo pickEntry(ThreadLocalRandom rnd) {
+        int n = active.size();
+        int i = rnd.nextInt(n + 1);
+        if (i == n) return bootstrap;
+        try {
+            return address.get(active.get(i));
+        } catch (IndexOutOfBoundsException e) {
+            return bootstrap;                               // churn shrank the list meanwhile
+        }
+    }
+
+    private void request(ServerInfo target, String op, String key) {
+        String msg = op + " " + key + (op.equals("insert") ? " v" + key : "");
+        long start = System.nanoTime();
+        String reply;
+        try {
+            reply = smart != null ? smart.send(op, key, op.equals("insert") ? "v" + key : null)
+                  : peers.call(target, msg, 2 * PeerPool.TIMEOUT_MS);   // room for the server's own deadline to report
+        } catch (IOException e) {
+            reply = "err client " + PeerPool.reason(e);
+        }
+        long nanos = System.nanoTime() - start;
+
+        byOp.get(op).record(nanos);
+        List<Long> path = Ring.path(reply);
+        byHops.computeIfAbsent(path.size(), h -> new LatencyHistogram()).record(nanos);
+        String[] words = Ring.status(reply).split(" ");
+        String status = words[0].equals("err") ? String.join(" ", Arrays.copyOf(words, Math.min(3, words.length)))
+                      : words[0];                       // keep why it failed
+        outcomes.computeIfAbsent(op + " " + status, s -> new LongAdder()).increment();
+    }
+
+    //alternately take a server out and bring a spare in
+    private void churn(long every, long end) {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        boolean leave = true;
+        while (System.nanoTime() < end) {
+            try {
+                Thread.sleep(every);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (leave && active.size() > 1) {
+                NameServer ns = active.remove(rnd.nextInt(active.size()));
+                if (ns.gracefulExit()) {
+                    spare.add(ns);
+                    exits.incrementAndGet();
+                } else {
+                    active.add(ns);
+                }
+            } else if (!spare.isEmpty()) {
+                NameServer ns = spare.remove(rnd.nextInt(spare.size()));
+                ns.performEntry();
+                active.add(ns);
+                joins.incrementAndGet();
+            }
+            leave = !leave;
+        }
+    }
+
+    private void report(int seconds) {
+        long total = 0;
+        for (LatencyHistogram h : byOp.values()) total += h.count();
+        System.out.println("Throughput: " + total / Math.max(1, seconds) + " ops/s (" + total + " ops)");
+        if (joins.get() + exits.get() > 0)
+            System.out.println("Churn: " + joins.get() + " joins, " + exits.get() + " exits");
+
+        System.out.println("Latency by operation:");
+        byOp.forEach((op, h) -> {
+            if (h.count() > 0) System.out.println(String.format("  %-7s %s", op, h.summary(1000, "us")));
+        });
+        System.out.println("Latency by servers on the path:");
+        new TreeMap<>(byHops).forEach((hops, h) ->
+                System.out.println(String.format("  %-7d %s", hops, h.summary(1000, "us"))));
+        System.out.println("Outcomes:");
+        new TreeMap<>(outcomes).forEach((k, v) -> System.out.println("  " + k + ": " + v.sum()));
+    }
+
+    private static void awaitPort(int port) throws InterruptedException {
+        for (int i = 0; i < 200; i++) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(25);
+            }
+        }
+    }
+
+    //-keys distinct keys, by default one per ring position up to 1024
+    private int keyCount() {
+        return intOpt("keys", (int) Math.min(Ring.SIZE, 1024));
+    }
+
+    //key k as sent: its ring position, or with -names a string the servers hash onto the ring
+    private String keyName(int k) {
+        return opts.containsKey("names") ? "key-" + k : String.valueOf(k);
+    }
+
+    private int intOpt(String name, int def) {
+        return opts.containsKey(name) ? Integer.parseInt(opts.get(name)) : def;
+    }
+
+    private static int[] parseMix(String mix) {
+        String[] p = mix.split(":");
+        int[] m = new int[3];
+        int sum = 0;
+        for (int i = 0; i < 3 && i < p.length; i++) sum += (m[i] = Integer.parseInt(p[i]));
+        for (int i = 0; i < 3; i++) m[i] = m[i] * 100 / Math.max(1, sum);
+        return m;
+    }
+
+    // uniform keys, or Zipf(s) ranks scattered over the key space so hot keys land on different servers
+    static final class KeyChooser {
+        private final int n;
+        private final double[] cdf;
+
+        KeyChooser(int n, double s) {
+            this.n = n;
+            if (s <= 0) {
+                cdf = null;
+                return;
+            }
+            cdf = new double[n];
+            double acc = 0;
+            for (int i = 0; i < n; i++) cdf[i] = acc += 1 / Math.pow(i + 1, s);
+            for (int i = 0; i < n; i++) cdf[i] /= acc;
+        }
+
+        int next(ThreadLocalRandom rnd) {
+            if (cdf == null) return rnd.nextInt(n);
+            int rank = Arrays.binarySearch(cdf, rnd.nextDouble());
+            if (rank < 0) rank = -rank - 1;
+            return (int) Math.floorMod(Math.min(rank, n - 1) * 0x9E3779B1L, (long) n);   // prime multiplier: a permutation of [0, n)
+        }
+    }
+
+    // java hashing.LoadGenerator [-nodes 8] [-spares 2] [-seconds 10] [-threads 16] [-mix 80:15:5]
+    //                            [-zipf 0.99] [-churn 500] [-entry any|bootstrap|direct] [-keys 1024] [-port 4000]
+    //                            [-warmup 5] [-names] [-verbose]
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("-")) {
+                System.out.println("Unexpected argument " + args[i]);
+                return;
+            }
+            String name = args[i].substring(1);
+            boolean flag = i + 1 >= args.length || args[i + 1].startsWith("-");
+            opts.put(name, flag ? "true" : args[++i]);
+        }
+        new LoadGenerator(opts).run();
+    }
+}
@@ -0,0 +1,132 @@
+package hashing;
+
+import java.util.*;
+
+// bounded LRU of lookup results for keys owned by other servers, entries expire after a TTL.
+// split into stripes by key, each with its own lock, share of the capacity and version, so a
+// write only holds up and invalidates lookups of keys in its own stripe
+class LookupCache {
+    private static final int MAX_STRIPES = 64;
+
+    private final int capacity;
+    private final long ttlMillis;
+    private final Stripe[] stripes;
+    private final int shift;                         // top bits of the mixed key pick the stripe
+
+    LookupCache(int capacity, long ttlMillis) {
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+        int n = capacity >= MAX_STRIPES ? MAX_STRIPES : Math.max(1, Integer.highestOneBit(capacity));
+        this.stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) stripes[i] = new Stripe(Math.max(1, capacity / n));
+        this.shift = 64 - Integer.numberOfTrailingZeros(n);
+    }
+
+    boolean enabled() {
+        return capacity > 0;
+    }
+
+    //cached reply status, or null on a miss
+    String get(long key) {
+        if (!enabled()) return null;
+        Stripe s = stripe(key);
+        synchronized (s) {
+            Entry e = s.map.get(key);
+            if (e != null && e.expires < System.currentTimeMillis()) {
+                s.map.remove(key);
+                s.expirations++;
+                e = null;
+            }
+            if (e == null) {
+                s.misses++;
+                return null;
+            }
+            s.hits++;
+            return e.status;
+        }
+    }
+
+    //taken before fetching key; a put with an older stamp than the stripe's last invalidation is dropped
+    long stamp(long key) {
+        if (!enabled()) return 0;
+        Stripe s = stripe(key);
+        synchronized (s) {
+            return s.version;
+        }
+    }
+
+    void put(long key, String status, long stamp) {
+        if (!enabled()) return;
+        Stripe s = stripe(key);
+        synchronized (s) {
+            if (stamp == s.version) s.map.put(key, new Entry(status, System.currentTimeMillis() + ttlMillis));
+        }
+    }
+
+    void invalidate(long key) {
+        if (!enabled()) return;
+        Stripe s = stripe(key);
+        synchronized (s) {
+            s.version++;
+            s.map.remove(key);
+        }
+    }
+
+    //keys in (pred, curr] changed owner
+    void invalidateRange(long pred, long curr) {
+        if (!enabled()) return;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                s.version++;
+                s.map.keySet().removeIf(k -> Ring.inRange(pred, curr, k));
+            }
+        }
+    }
+
+    String stats() {
+        long size = 0, hits = 0, misses = 0, evictions = 0, expirations = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                size += s.map.size();
+                hits += s.hits;
+                misses += s.misses;
+                evictions += s.evictions;
+                expirations += s.expirations;
+            }
+        }
+        long total = hits + misses;
+        return "cache size=" + size + "/" + capacity + " hits=" + hits + " misses=" + misses
+               + " hitRate=" + (total == 0 ? 0 : hits * 100 / total) + "%"
+               + " evictions=" + evictions + " expired=" + expirations;
+    }
+
+    private Stripe stripe(long key) {
+        return stripes.length == 1 ? stripes[0] : stripes[(int) ((key * 0x9E3779B97F4A7C15L) >>> shift)];
+    }
+
+    private static class Stripe {
+        final LinkedHashMap<Long, Entry> map;
+        long version;                                // bumped by every write/ring change in the stripe
+        long hits, misses, evictions, expirations;
+
+        Stripe(int capacity) {
+            this.map = new LinkedHashMap<>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                    if (size() <= capacity) return false;
+                    evictions++;
+                    return true;
+                }
+            };
+        }
+    }
+
+    private static class Entry {
+        final String status;
+        final long expires;
+
+        Entry(String status, long expires) {
+            this.status = status;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package hashing;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import javax.management.*;
+
+// per-server counters and latency histograms, cheap enough to leave on: recording only touches
+// LongAdders and striped histograms. read by the "stats" verb and over JMX
+class Metrics implements MetricsMBean {
+    private static final int MAX_VERBS = 64;                 // anything past this is counted as "other"
+
+    private final String name;
+    private final long started = System.currentTimeMillis();
+    private final ConcurrentHashMap<String, LatencyHistogram> verbs = new ConcurrentHashMap<>();
+    private final LatencyHistogram outbound = new LatencyHistogram();
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+    Metrics(String name) {
+        this.name = name;
+    }
+
+    //times every line by its first word
+    NioServer.Handler instrument(NioServer.Handler handler) {
+        return (session, line) -> {
+            long start = System.nanoTime();
+            try {
+                handler.handle(session, line);
+            } catch (IOException | RuntimeException e) {
+                count("errors", 1);
+                throw e;
+            } finally {
+                int sp = line.indexOf(' ');
+                record((sp < 0 ? line : line.substring(0, sp)).toLowerCase(), System.nanoTime() - start);
+            }
+        };
+    }
+
+    void record(String verb, long nanos) {
+        LatencyHistogram h = verbs.get(verb);
+        if (h == null) {
+            if (verbs.size() >= MAX_VERBS) verb = "other";
+            h = verbs.computeIfAbsent(verb, v -> new LatencyHistogram());
+        }
+        h.record(nanos);
+    }
+
+    //a call to another server
+    void outbound(long nanos, boolean ok) {
+        outbound.record(nanos);
+        if (!ok) count("outbound.errors", 1);
+    }
+
+    void count(String counter, long n) {
+        counters.computeIfAbsent(counter, c -> new LongAdder()).add(n);
+    }
+
+    void gauge(String gauge, LongSupplier value) {
+        gauges.put(gauge, value);
+    }
+
+    void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(this, new ObjectName("hashing:type=Server,name=" + name));
+        } catch (JMException e) {
+            System.out.println("JMX registration failed: " + e.getMessage());
+        }
+    }
+
+    // "stats uptime=.. <gauge>=.. <counter>=.. out.p50us=.. <verb>.n=.. <verb>.p50us=.. <verb>.p99us=.."
+    String line() {
+        StringBuilder sb = new StringBuilder("stats uptime=" + (System.currentTimeMillis() - started) / 1000);
+        gauges.forEach((g, v) -> sb.append(' ').append(g).append('=').append(v.getAsLong()));
+        new TreeMap<>(counters).forEach((c, v) -> sb.append(' ').append(c).append('=').append(v.sum()));
+        append(sb, "out", outbound);
+        new TreeMap<>(verbs).forEach((v, h) -> append(sb, v, h));
+        return sb.toString();
+    }
+
+    //multi-line form for the console
+    String report() {
+        StringBuilder sb = new StringBuilder("Uptime " + (System.currentTimeMillis() - started) / 1000 + "s");
+        gauges.forEach((g, v) -> sb.append(", ").append(g).append(' ').append(v.getAsLong()));
+        new TreeMap<>(counters).forEach((c, v) -> sb.append(", ").append(c).append(' ').append(v.sum()));
+        if (outbound.count() > 0)
+            sb.append(String.format("%n  %-10s %s", "outbound", outbound.summary(1000, "us")));
+        for (String v : getVerbs()) sb.append(System.lineSeparator()).append("  ").append(v);
+        return sb.toString();
+    }
+
+    private static void append(StringBuilder sb, String prefix, LatencyHistogram h) {
+        if (h.count() == 0) return;
+        sb.append(' ').append(prefix).append(".n=").append(h.count())
+          .append(' ').append(prefix).append(".p50us=").append(h.percentile(50) / 1000)
+          .append(' ').append(prefix).append(".p99us=").append(h.percentile(99) / 1000)
+          .append(' ').append(prefix).append(".maxus=").append(h.max() / 1000);
+    }
+
+    private long gaugeValue(String gauge) {
+        LongSupplier g = gauges.get(gauge);
+        return g == null ? 0 : g.getAsLong();
+    }
+
+    private long counterValue(String counter) {
+        LongAdder c = counters.get(counter);
+        return c == null ? 0 : c.sum();
+    }
+
+    public long getRequests() {
+        long n = 0;
+        for (LatencyHistogram h : verbs.values()) n += h.count();
+        return n;
+    }
+
+    public long getErrors() {
+        return counterValue("errors");
+    }
+
+    public long getConnections() {
+        return gaugeValue("connections");
+    }
+
+    public long getQueueDepth() {
+        return gaugeValue("queue");
+    }
+
+    public long getStoreSize() {
+        return gaugeValue("store");
+    }
+
+    public long getKeysMoved() {
+        return counterValue("moved.keys");
+    }
+
+    public long getBytesMoved() {
+        return counterValue("moved.bytes");
+    }
+
+    public long getOutboundP99Micros() {
+        return outbound.percentile(99) / 1000;
+    }
+
+    public String[] getVerbs() {
+        List<String> out = new ArrayList<>();
+        new TreeMap<>(verbs).forEach((v, h) -> out.add(String.format("%-10s %s", v, h.summary(1000, "us"))));
+        return out.toArray(new String[0]);
+    }
+
+    public String getStats() {
+        return line();
+    }
+}
@@ -0,0 +1,27 @@
+package hashing;
+
+// what a server's Metrics show over JMX (hashing:type=Server,name=<server>)
+public interface MetricsMBean {
+
+    long getRequests();
+
+    long getErrors();
+
+    long getConnections();
+
+    long getQueueDepth();
+
+    long getStoreSize();
+
+    long getKeysMoved();
+
+    long getBytesMoved();
+
+    long getOutboundP99Micros();
+
+    //one "<verb> n=.. p50=.. .." line per request verb
+    String[] getVerbs();
+
+    //the same line the "stats" verb answers with
+    String getStats();
+}
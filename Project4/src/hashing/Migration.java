@@ -0,0 +1,194 @@
+package hashing;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+// the holder's side of handing ranges (from, to] to a joining server in two phases. copy() streams
+// a snapshot of them while we keep serving; cutover() then holds off local requests just long
+// enough to ship what changed since the copy, drops our entries and forwards the ranges to their
+// new owner until our own view of the ring includes the move (settled). all ranges a server takes
+// from us move in one cutover, so a failure leaves every one of them here
+final class Migration {
+    private final KeyValueStore store;
+    private final PeerPool peers;
+    private final Metrics metrics;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ConcurrentHashMap<Long, NavigableMap<Long, String>> copies = new ConcurrentHashMap<>();  // by range end
+    private volatile List<Moved> moved = List.of();
+
+    Migration(KeyValueStore store, PeerPool peers, Metrics metrics) {
+        this.store = store;
+        this.peers = peers;
+        this.metrics = metrics;
+    }
+
+    //"copy <owner> <ip> <port> <from> <to>...", "dropcopy <from> <to>..." and
+    //"cutover <owner> <ip> <port> <epoch> <from> <to>..." from the bootstrap, answered in one line
+    String handle(String[] p) {
+        try {
+            switch (p[0].toLowerCase()) {
+                case "copy":
+                    return "copied " + copy(Long.parseLong(p[1]), new ServerInfo(p[2], Integer.parseInt(p[3])), ranges(p, 4));
+                case "dropcopy":
+                    drop(ranges(p, 1));
+                    return "ok";
+                default:
+                    return "moved " + cutover(Long.parseLong(p[1]), new ServerInfo(p[2], Integer.parseInt(p[3])),
+                                              ranges(p, 5), Long.parseLong(p[4]));
+            }
+        } catch (IOException e) {
+            return "err " + e.getMessage();
+        }
+    }
+
+    //phase one: the ranges as they are now, our store untouched; returns the entries sent. each range
+    //goes as its own transfer, so the receiver knows which ranges it got should the join be called off
+    int copy(long owner, ServerInfo target, long[] ranges) throws IOException {
+        int sent = 0;
+        Map<Long, NavigableMap<Long, String>> taken = new HashMap<>();
+        for (int i = 0; i < ranges.length; i += 2) {
+            NavigableMap<Long, String> snapshot = rangeOf(ranges[i], ranges[i + 1]);
+            taken.put(ranges[i + 1], snapshot);
+            if (snapshot.isEmpty())
+                continue;
+            metrics.count("moved.bytes", Transfer.send(peers, target, ranges[i], ranges[i + 1], snapshot, "Copied to " + owner));
+            metrics.count("moved.keys", snapshot.size());
+            sent += snapshot.size();
+        }
+        copies.putAll(taken);
+        return sent;
+    }
+
+    //the join was called off before its cutover
+    void drop(long[] ranges) {
+        for (int i = 0; i < ranges.length; i += 2) copies.remove(ranges[i + 1]);
+    }
+
+    //phase two: send the writes and deletes since the copy, then forward the ranges to owner until the
+    //ring of the given epoch reaches us; on failure nothing changes here. returns the entries handed over
+    int cutover(long owner, ServerInfo target, long[] ranges, long epoch) throws IOException {
+        lock.writeLock().lock();
+        try {
+            Map<Long, String> handed = sendDelta(owner, target, ranges, deadline());
+            forward(owner, target, ranges, epoch, handed);
+            return handed.size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //send the writes and deletes since the copy, giving up at deadline; returns the entries of the ranges
+    //as target now has them. callers hold exclusive(), so nothing changes before forward()
+    Map<Long, String> sendDelta(long owner, ServerInfo target, long[] ranges, long deadline) throws IOException {
+        Map<Long, String> handed = new HashMap<>();
+        for (int i = 0; i < ranges.length; i += 2) {
+            TreeMap<Long, String> delta = new TreeMap<>();
+            NavigableMap<Long, String> copied = copies.getOrDefault(ranges[i + 1], Collections.emptyNavigableMap());
+            NavigableMap<Long, String> now = rangeOf(ranges[i], ranges[i + 1]);
+            for (Map.Entry<Long, String> e : now.entrySet()) {
+                if (!e.getValue().equals(copied.get(e.getKey()))) delta.put(e.getKey(), e.getValue());
+            }
+            for (Long k : copied.keySet()) {
+                if (!now.containsKey(k)) delta.put(k, null);    // deleted meanwhile
+            }
+            handed.putAll(now);
+            if (!delta.isEmpty()) {
+                metrics.count("moved.bytes", Transfer.send(peers, target, ranges[i], ranges[i + 1], delta, "Delta to " + owner, deadline));
+                metrics.count("moved.keys", delta.size());
+            }
+        }
+        return handed;
+    }
+
+    //from now on requests for the ranges go to owner until the ring of the given epoch reaches us;
+    //drops the handed entries here. callers hold exclusive()
+    void forward(long owner, ServerInfo target, long[] ranges, long epoch, Map<Long, String> handed) {
+        List<Moved> m = new ArrayList<>(moved);
+        for (int i = 0; i < ranges.length; i += 2) m.add(new Moved(ranges[i], ranges[i + 1], owner, target, epoch));
+        moved = m;
+        drop(ranges);
+        store.removeAll(handed);
+    }
+
+    //held while ranges are handed over; keeps every local request out
+    Lock exclusive() {
+        return lock.writeLock();
+    }
+
+    //when a handover that just took exclusive() must let go of it: no later than one bulk call
+    static long deadline() {
+        return PeerPool.deadline(PeerPool.BULK_MS);
+    }
+
+    //held by request handlers from the ownership check through the local read or write
+    Lock serving() {
+        return lock.readLock();
+    }
+
+    //serving lock, waiting for a handover no longer than a routed caller waits for our answer; a handler
+    //blocked for good would hold a worker of whoever sent the request, which the handover may need
+    static boolean acquire(Lock serving) {
+        try {
+            return serving.tryLock(PeerPool.TIMEOUT_MS / 2, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    //where key went if we handed its range over but still think we own it, else null
+    Moved forwardTo(long key) {
+        for (Moved m : moved) {
+            if (Ring.inRange(m.from, m.to, key)) return m;
+        }
+        return null;
+    }
+
+    //our view of the ring now reflects every move up to this epoch
+    void settled(long epoch) {
+        if (moved.isEmpty())
+            return;
+        lock.writeLock().lock();
+        try {
+            List<Moved> m = new ArrayList<>(moved);
+            m.removeIf(x -> x.epoch <= epoch);
+            moved = m;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static long[] ranges(String[] p, int from) {
+        long[] r = new long[p.length - from];
+        for (int i = 0; i < r.length; i++) r[i] = Long.parseLong(p[from + i]);
+        return r;
+    }
+
+    //(from, to] of our store, wrapping past the top of the ring
+    private NavigableMap<Long, String> rangeOf(long from, long to) {
+        if (from < to)
+            return store.range(from + 1, to, Integer.MAX_VALUE);
+        NavigableMap<Long, String> out = store.range(from + 1, Long.MAX_VALUE, Integer.MAX_VALUE);
+        out.putAll(store.range(Long.MIN_VALUE, to, Integer.MAX_VALUE));
+        return out;
+    }
+
+    // a range handed over to owner
+    static final class Moved {
+        final long from;
+        final long to;
+        final long owner;
+        final ServerInfo target;
+        final long epoch;               // first ring that has owner there
+
+        Moved(long from, long to, long owner, ServerInfo target, long epoch) {
+            this.from = from;
+            this.to = to;
+            this.owner = owner;
+            this.target = target;
+            this.epoch = epoch;
+        }
+    }
+}
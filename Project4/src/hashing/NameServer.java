@@ -3,32 +3,77 @@ package hashing;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Lock;
 
 public class NameServer {
-    private int id;
+    private long id;
     private int port;
     private String bootstrapIP;
     private int bootstrapPort;
 
     //local states
-    private TreeMap<Integer,String> keyValueStore = new TreeMap<>();
-    private int predecessor = -1;
-    private int successor   = -1;
-
-    private String successorIP = null;
-    private int    successorPort = -1;
-
-    public NameServer(int id, int port, String bootstrapIP, int bootstrapPort) {
+    private final KeyValueStore keyValueStore;
+    private final KeyValueStore replicaStore;           // copies of our predecessors' keys
+    private volatile long predecessor = -1;
+    private volatile long successor   = -1;
+
+    private volatile String successorIP = null;
+    private volatile int    successorPort = -1;
+
+    private volatile String predecessorIP = null;
+    private volatile int    predecessorPort = -1;
+    private String selfIP = null;                       // as seen by the bootstrap
+    private volatile boolean entering = false;          // holders forward our new ranges before we know them
+    private final Map<Long, Long> received = new ConcurrentHashMap<>();   // (from, to] copied to us while entering, by to
+
+    // fingers[i] = successor(id + 2^i), refreshed by stabilize()
+    private final Finger[] fingers = new Finger[Ring.BITS];
+    private final long stabilizeMillis = Long.getLong("stabilize.ms", 2000);
+
+    // with virtual nodes we own several ranges and route on the bootstrap's full position table
+    private final int vnodes = Integer.getInteger("vnodes", 1);
+    private volatile RingSnapshot ringView = null;
+    private volatile RingSnapshot members = null;       // newest table while we are in the ring, kept by gossip
+    private volatile long ringEpoch = -1;               // newest table seen, older pushes are dropped
+
+    private final PeerPool peers = new PeerPool();
+    private final Replicator replicator;
+    private final Metrics metrics;
+    private final Migration migration;
+    private final RangeLoad load = new RangeLoad();
+    private final Gossip gossip;
+    private final NioServer server;
+    private final ScheduledExecutorService stabilizer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "stabilizer");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile List<Finger> successorList = List.of();  // next replicas-1 servers
+
+    public NameServer(long id, int port, String bootstrapIP, int bootstrapPort) {
         this.id = id;
         this.port = port;
         this.bootstrapIP = bootstrapIP;
         this.bootstrapPort = bootstrapPort;
+        this.keyValueStore = KeyValueStore.open("ns-" + id);
+        this.replicaStore  = KeyValueStore.open("ns-" + id + "-replicas");
+        this.replicator    = new Replicator(peers, keyValueStore::snapshot);
+        this.metrics       = new Metrics("ns-" + id);
+        this.migration     = new Migration(keyValueStore, peers, metrics);
+        this.gossip        = new Gossip(id, peers, () -> members, this::loadRing);
+        this.server        = new NioServer(port, metrics.instrument(new clientHandler()));
+        metrics.gauge("connections", server::connections);
+        metrics.gauge("queue", server::queued);
+        metrics.gauge("store", keyValueStore::size);
+        metrics.gauge("replicas", replicaStore::size);
+        metrics.gauge("epoch", () -> ringEpoch);
+        metrics.register();
     }
 
     public void start() {
         System.out.println("Name Server " + id + " started on port " + port);
-        
-        new Thread(this::listen).start();                   //begin listener thread for inter‑server messages
+        startServices();
 
         Scanner sc = new Scanner(System.in);
 
@@ -46,8 +91,9 @@ public class NameServer {
                 sendCommandToBootstrap("exit " + id);
                 System.out.println("Request sent to Bootstrap Server to exit.");
                 break;*/
-                gracefulExit();
-                return;
+                if (gracefulExit())
+                    return;
+                continue;
 
             } else if (command.equalsIgnoreCase("enter")) {
                 //sendCommandToBootstrap("enter " + id + " " + port);
@@ -56,182 +102,668 @@ public class NameServer {
                 //break;
                 continue;
 
+            } else if (command.equalsIgnoreCase("stats")) {
+                System.out.println(metrics.report());
+
+            } else if (command.toLowerCase().startsWith("lookup ")) {
+                long key = Ring.key(command.split(" ")[1]);
+                String reply = route("lookup", key, null, Ring.MAX_HOPS);
+                String status = Ring.status(reply);
+                System.out.println(status.startsWith("found") ?
+                                   "Key " + key + " found with value: " + status.substring(6) : "Key not found.");
+                System.out.println("Server path: " + Ring.path(reply));
+
+            } else if (command.toLowerCase().startsWith("insert ")) {
+                String[] in = command.split(" ");
+                String value = in.length > 2 ? Ring.rest(command, 2) : null;
+                if (value == null) {
+                    System.out.println("Usage: insert <key> <value>");
+                    continue;
+                }
+                String reply = route("insert", Ring.key(in[1]), value, Ring.MAX_HOPS);
+                List<Long> path = Ring.path(reply);
+                System.out.println(Ring.status(reply).equals("ok") ?
+                                   "Inserted at server " + path.get(path.size() - 1) : "Insert failed: " + Ring.status(reply));
+                System.out.println("Server path: " + path);
+
+            } else if (command.toLowerCase().startsWith("delete ")) {
+                String reply = route("delete", Ring.key(command.split(" ")[1]), null, Ring.MAX_HOPS);
+                System.out.println(Ring.status(reply).equals("deleted") ? "Successful deletion" : "Key not found.");
+                System.out.println("Server path: " + Ring.path(reply));
+
             } else {
-                System.out.println("Invalid command. Use 'enter' or 'exit'");
+                System.out.println("Invalid command. Use 'enter', 'exit', 'lookup', 'insert', 'delete' or 'stats'");
             }
         }
     }
 
+    //listener and stabilizer, without the console
+    void startServices() {
+        new Thread(this::listen).start();                   //begin listener thread for inter‑server messages
+        stabilizer.scheduleWithFixedDelay(this::stabilize, stabilizeMillis, stabilizeMillis, TimeUnit.MILLISECONDS);
+        gossip.start();
+    }
+
+    //stop serving and close every connection, without leaving the ring first
+    void close() {
+        stabilizer.shutdownNow();
+        gossip.stop();
+        replicator.setTargets(List.of());
+        server.close();
+        peers.close();
+    }
+
     //helper to perform entry into the ring
-    private void performEntry() {
-        try (Socket s = new Socket(bootstrapIP, bootstrapPort);
-             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
-             PrintWriter out = new PrintWriter(s.getOutputStream(), true)) {
-    
-            out.println("enter " + id + " " + port);
-    
-            String line = in.readLine();                  // read from bootstrap
+    void performEntry() {
+        migration.settled(Long.MAX_VALUE);                  // forwarding left over from an earlier exit
+        received.clear();
+        entering = true;
+        try {
+            String line = peers.call(bootstrap(), "enter " + id + " " + port + " " + vnodes, PeerPool.BULK_MS);   // read from bootstrap
             if (line == null || !line.startsWith("neighbors")) {
-                System.out.println("Bootstrap did not reply — entry failed");
+                // what was copied to us before the join was called off; keys we had before, e.g. recovered
+                // from -Ddata.dir, stay unless a holder's copy of their range replaced them
+                received.forEach((to, from) -> keyValueStore.extractRange(from, to));
+                System.out.println("Bootstrap did not reply — entry failed" + (line != null ? ": " + line : ""));
                 return;
             }
             String[] p = line.trim().split(" ");
     
-            predecessor   = Integer.parseInt(p[1]);
-            successor     = Integer.parseInt(p[4]);
-            successorIP   = p[5];
-            successorPort = Integer.parseInt(p[6]);
+            predecessor     = Long.parseLong(p[1]);
+            predecessorIP   = p[2];
+            predecessorPort = Integer.parseInt(p[3]);
+            successor       = Long.parseLong(p[4]);
+            successorIP     = p[5];
+            successorPort   = Integer.parseInt(p[6]);
+            selfIP          = p.length > 7 ? p[7] : InetAddress.getLocalHost().getHostAddress();
     
-            System.out.println("Successful entry. Key range: (" + predecessor + ", " + id + "]");
+            if (p.length <= 8) {
+                System.out.println("Successful entry. Key range: (" + predecessor + ", " + id + "]");
+                System.out.println("Predecessor: " + predecessor + "  Successor: "   + successor);
+                requestKeysFromSuccessor();            // pull KV pairs
+                return;
+            }
+
+            // then "<from> <to> <holder id> <ip> <port>" per owned range, the holders copied its keys to us already
+            loadRing(peers.call(bootstrap(), "ring"));
+            List<String> ranges = new ArrayList<>();
+            for (int i = 8; i + 4 < p.length; i += 5)
+                ranges.add("(" + p[i] + ", " + p[i + 1] + "]");
+            System.out.println("Successful entry. Key range" + (ranges.size() > 1 ? "s: " : ": ") + String.join(" ", ranges));
             System.out.println("Predecessor: " + predecessor + "  Successor: "   + successor);
-    
-            requestKeysFromSuccessor();            // pull KV pairs
 
         } catch (IOException e) {
             System.out.println("Entry error: " + e.getMessage());
+        } finally {
+            entering = false;
+            received.clear();
         }
     }
     
-    // moves keys to successor and informs bootstrap
-    private void gracefulExit() {
-        if (successor != -1 && successor != id) {
-            for (var e : keyValueStore.entrySet())
-                remoteInsertToSuccessor(e.getKey(), e.getValue());
-            keyValueStore.clear();
+    // copies each of our ranges to the server taking it over while we go on serving, then keeps local
+    // requests out while the changes since the copy follow and the bootstrap takes us off the ring.
+    // only once it confirms are our entries dropped, requests for them forwarded to their new owners
+    // from then on; any failure before that leaves us in the ring with every key. true once out
+    boolean gracefulExit() {
+        if (!inRing()) {
+            System.out.println("Not in the ring.");
+            return false;
+        }
+        RingSnapshot view = ringView;
+        Map<Long, Finger> heirs = new HashMap<>();
+        Map<Long, long[]> given = new LinkedHashMap<>();        // "from to..." by heir
+        if (view != null) {
+            Map<Long, List<Long>> ranges = new LinkedHashMap<>();
+            for (int i = 0; i < view.size(); i++) {
+                if (view.owner(i) != id) continue;
+                Finger heir = heirOf(view, view.token(i));
+                heirs.put(heir.id, heir);
+                List<Long> r = ranges.computeIfAbsent(heir.id, h -> new ArrayList<>());
+                r.add(view.token(view.predecessorIndex(view.token(i))));
+                r.add(view.token(i));
+            }
+            ranges.forEach((h, r) -> given.put(h, r.stream().mapToLong(Long::longValue).toArray()));
+        } else {
+            heirs.put(successor, node(successor, successorIP, successorPort));
+            given.put(successor, new long[] {id, id});            // (id, id] is the whole ring: all we hold
         }
-        try (Socket s = new Socket(bootstrapIP, bootstrapPort);
-             PrintWriter out = new PrintWriter(s.getOutputStream(), true)) {
-            out.println("exit " + id);
-        } catch (IOException ignore) { }
-        System.out.println("Request sent to Bootstrap Server to exit.");
+
+        try {
+            for (Map.Entry<Long, long[]> e : given.entrySet())
+                migration.copy(e.getKey(), heirs.get(e.getKey()).info, e.getValue());
+        } catch (IOException e) {
+            given.values().forEach(migration::drop);
+            System.out.println("Handoff failed, staying in the ring: " + e.getMessage());
+            return false;
+        }
+
+        Lock all = migration.exclusive();
+        all.lock();
+        try {
+            long deadline = Migration.deadline();
+            Map<Long, Map<Long, String>> handed = new HashMap<>();
+            for (Map.Entry<Long, long[]> e : given.entrySet())
+                handed.put(e.getKey(), migration.sendDelta(e.getKey(), heirs.get(e.getKey()).info, e.getValue(), deadline));
+            Map<Long, String> strays = new HashMap<>(keyValueStore.snapshot());   // outside our ranges
+            handed.values().forEach(h -> strays.keySet().removeAll(h.keySet()));
+            if (view != null) handOffStrays(view, strays, deadline);
+            String reply = peers.call(bootstrap(), "exit " + id, PeerPool.left(deadline, bootstrap()));   // membership changes take a while
+            if (!reply.startsWith("ok"))
+                throw new IOException("bootstrap answered " + reply);
+            for (Map.Entry<Long, long[]> e : given.entrySet())
+                migration.forward(e.getKey(), heirs.get(e.getKey()).info, e.getValue(), Long.MAX_VALUE, handed.get(e.getKey()));
+            keyValueStore.removeAll(strays);
+        } catch (IOException e) {
+            given.values().forEach(migration::drop);
+            System.out.println("Exit failed, staying in the ring with all keys: " + e.getMessage());
+            return false;
+        } finally {
+            all.unlock();
+        }
+
+        predecessor = successor = -1;
+        ringView = members = null;
+        Arrays.fill(fingers, null);
+        successorList = List.of();
+        replicator.setTargets(List.of());
+        Replicator.prune(replicaStore, null, id);
+        System.out.println("Left the ring" + (keyValueStore.isEmpty() ? "." : ", " + keyValueStore.size() + " keys arrived since"));
+        return true;
+    }
+
+    //keys that are not in any of our ranges go to whoever comes next for them; not served here, so no cutover
+    private void handOffStrays(RingSnapshot view, Map<Long, String> strays, long deadline) throws IOException {
+        Map<Long, Finger> heirs = new HashMap<>();
+        Map<Long, TreeMap<Long, String>> batches = new HashMap<>();
+        strays.forEach((k, v) -> {
+            Finger heir = heirOf(view, k);
+            heirs.put(heir.id, heir);
+            batches.computeIfAbsent(heir.id, h -> new TreeMap<>()).put(k, v);
+        });
+        for (Map.Entry<Long, TreeMap<Long, String>> e : batches.entrySet()) {
+            TreeMap<Long, String> batch = e.getValue();
+            metrics.count("moved.bytes", Transfer.send(peers, heirs.get(e.getKey()).info,
+                    Math.floorMod(batch.firstKey() - 1, Ring.SIZE), batch.lastKey(), batch, "Handed off to " + e.getKey(), deadline));
+            metrics.count("moved.keys", batch.size());
+        }
+    }
+
+    private Finger heirOf(RingSnapshot view, long key) {
+        int at = view.successorIndex(key);
+        for (int i = 0; i < view.size(); i++, at = view.next(at)) {
+            if (view.owner(at) != id) return new Finger(view.owner(at), view.server(at));
+        }
+        return node(0, null, 0);                                    // nobody else left but the bootstrap
+    }
+
+    private static Finger ownerIn(RingSnapshot view, long key) {
+        int at = view.successorIndex(key);
+        return new Finger(view.owner(at), view.server(at));
+    }
+
+    //"<verb> <epoch> <position> <server id> <ip> <port> ..." from the bootstrap or gossip; neighbours follow
+    //our own id, the table is only routed on while some server has virtual nodes
+    private synchronized void loadRing(String line) {
+        RingSnapshot view = RingSnapshot.parse(line.trim().split(" "), 1, (sid, ip, p) -> node(sid, ip, p).info);
+        if (view.epoch < ringEpoch || view.indexOf(id) < 0) 
+            return;                                      // overtaken by a newer one, or from before we entered
+        boolean changed = view.epoch > ringEpoch;
+        ringEpoch = view.epoch;
+        members = view;
+        int self = view.indexOf(id);
+        if (self >= 0) {
+            int pred = view.predecessorIndex(id);
+            int succ = view.next(self);
+            predecessor     = view.token(pred);
+            predecessorIP   = view.server(pred).ip;
+            predecessorPort = view.server(pred).port;
+            successor       = view.token(succ);
+            successorIP     = view.server(succ).ip;
+            successorPort   = view.server(succ).port;
+        }
+
+        RingSnapshot old = ringView;
+        ringView = view.virtual() ? view : null;
+        migration.settled(view.epoch);
+        if (changed && replicator.enabled())
+            Replicator.prune(replicaStore, view, id);      // ranges we no longer replicate go stale
+
+        // ranges we just took over are not on our replicas yet
+        if (replicator.enabled() && old != null && ringView != null) {
+            Map<Long, String> gained = new HashMap<>();
+            keyValueStore.snapshot().forEach((k, v) -> {
+                if (view.owner(view.successorIndex(k)) == id && old.owner(old.successorIndex(k)) != id) gained.put(k, v);
+            });
+            replicator.push(gained);
+        }
+    }
+
+    //the table gossip keeps, or the bootstrap's before we are in the ring
+    private RingSnapshot fullRing() throws IOException {
+        RingSnapshot view = members;
+        if (view != null)
+            return view;
+        String reply = peers.call(bootstrap(), "ring");
+        return RingSnapshot.parse(reply.trim().split(" "), 1, (sid, ip, p) -> node(sid, ip, p).info);
     }
 
     //helper to listern to network messages
     private void listen() {
-        try (ServerSocket ss = new ServerSocket(port)) {
-            while (true) {
-                Socket s = ss.accept();
-                new Thread(new clientHandler(s)).start();
-            }
+        try {
+            server.serve();
         } catch (IOException e) {
             System.out.println("Listener error: " + e.getMessage());
         }
     }
 
-    class clientHandler implements Runnable {
-        Socket socket;
-        
-        clientHandler(Socket s) {
-            socket = s; 
+    // one request line at a time, the connection stays open for more
+    class clientHandler implements NioServer.Handler {
+
+        public void handle(NioServer.Session session, String line) throws IOException {
+            String[] p = line.trim().split(" ");
+            
+            switch (p[0].toLowerCase()) {
+                case "neighbors":            //from bootstrap on join
+                    predecessor = Long.parseLong(p[1]);
+                    successor   = Long.parseLong(p[4]);
+                    successorIP  = p[5];
+                    successorPort= Integer.parseInt(p[6]); 
+
+                    System.out.println("Successful entry. Key range: [" +
+                                      predecessor + ", " + id + "]");
+                    System.out.println("Predecessor: " + predecessor +
+                                       "  Successor: " + successor);
+
+                    requestKeysFromSuccessor(); // pull keys from successor
+
+                    break;
+
+                case "setsucc":              // bootstrap to succ changed
+                    successor = Long.parseLong(p[1]);
+                    //successorIP   = socket.getInetAddress().getHostAddress();
+                    successorIP  = p[2];
+                    //successorPort = Integer.parseInt(p[2]);      // bootstrap passes port in p[2]
+                    successorPort= Integer.parseInt(p[3]);
+
+                    System.out.println("Updated successor: " + successor);
+                    session.println("ok");
+                    break;
+
+                case "setpred":              // bootstrap to pred changed
+                    long oldPred = predecessor;
+                    predecessor = Long.parseLong(p[1]);
+                    predecessorIP   = p[2];
+                    predecessorPort = Integer.parseInt(p[3]);
+                    System.out.println("Updated predecessor: " + predecessor);
+                    session.println("ok");
+                    if (ringView == null) 
+                        migration.settled(Long.MAX_VALUE);     // our range ends at the new server now
+
+                    // range grew by (predecessor, oldPred]: our replicas don't have those keys yet
+                    if (replicator.enabled() && oldPred != -1 && Ring.between(predecessor, id, oldPred)) {
+                        long newPred = predecessor;
+                        Map<Long, String> taken = new HashMap<>();
+                        keyValueStore.snapshot().forEach((k, v) -> {
+                            if (Ring.inRange(newPred, oldPred, k)) taken.put(k, v);
+                        });
+                        replicator.push(taken);
+                    }
+                    break;
+
+                case "setring":              // the position table, pushed by the bootstrap or gossip
+                    loadRing(line);
+                    session.println("ok");
+                    break;
+
+                case "gossip":               // epoch of the sender's table
+                    session.println(Gossip.answer(members, Long.parseLong(p[1])));
+                    break;
+
+                case "ring":                 // any member answers for the membership
+                    RingSnapshot view = members;
+                    session.println(view != null ? "ring " + view.table() : "err not in the ring");
+                    break;
+
+                case "replicate":            // count, then P/D lines from the owner of those keys
+                    Replicator.receive(session, Integer.parseInt(p[1]), replicaStore);
+                    break;
+
+                case "succlist":             // our successor followed by its successor list
+                    StringBuilder sb = new StringBuilder("succs " + successor + " " + successorIP + " " + successorPort);
+                    for (Finger f : successorList)
+                        sb.append(" ").append(f.id).append(" ").append(f.info.ip).append(" ").append(f.info.port);
+                    session.println(sb.toString());
+                    break;
+
+                case "transfer":             // from to count [order], then count lines
+                    if (entering && !p[1].equals(p[2]))
+                        received.put(Long.parseLong(p[2]), Long.parseLong(p[1]));
+                    Transfer.receive(session, p);
+                    break;
+
+                case "commit":               // count crc of the transfers on this connection
+                    Transfer.commit(session, Long.parseLong(p[1]), Long.parseLong(p[2]), keyValueStore, replicator);
+                    break;
+                
+                case "scan":                 // from to [limit], in key order
+                    try {
+                        new Scan(fullRing(), id, keyValueStore, peers).run(session, Long.parseLong(p[1]), Long.parseLong(p[2]),
+                                                                           p.length > 3 ? Long.parseLong(p[3]) : Long.MAX_VALUE);
+                    } catch (IOException e) {
+                        session.println("err " + e.getMessage());
+                    }
+                    break;
+
+                case "copy":                 // a joining server takes ranges from us, see Migration
+                case "dropcopy":
+                case "cutover":
+                    session.println(migration.handle(p));
+                    break;
+
+                case "mget":                 // n [ttl], then n keys (with values for mput)
+                case "mput":
+                case "mdelete":
+                    boolean track = Replicator.READ_ANY && !p[0].equalsIgnoreCase("mget");
+                    List<Long> written = new ArrayList<>();
+                    Batch.serve(session, p, peers, migration.serving(), () -> ringEpoch, key -> {
+                        if (track) written.add(key);
+                        return batchTarget(key);
+                    }, (verb, k, v, o) -> {
+                        for (long key : k) load.record(positionOf(key), key);
+                        Batch.apply(keyValueStore, replicator, verb, k, v, o);
+                    });
+                    written.forEach(replicaStore::remove);          // our copies are older than the writes
+                    break;
+
+                case "range":                // lo hi limit, a page of our own keys
+                    Scan.serveRange(session, keyValueStore, Long.parseLong(p[1]), Long.parseLong(p[2]), Integer.parseInt(p[3]));
+                    break;
+
+                case "getkeys":        // requester: predID myID
+                    long from = Long.parseLong(p[1]);
+                    long to   = Long.parseLong(p[2]);
+                
+                    // collect all keys in (from, to], removing them from my store
+                    NavigableMap<Long, String> list = keyValueStore.extractRange(from, to);
+                
+                    session.println("count " + list.size());
+                    long bytes = 0;
+                    for (Map.Entry<Long, String> e : list.entrySet()) {
+                        String kv = e.getKey() + " " + e.getValue();
+                        session.println(kv);
+                        bytes += kv.length() + 1;
+                    }
+                    metrics.count("moved.keys", list.size());
+                    metrics.count("moved.bytes", bytes);
+                    break;
+
+                case "stats":
+                    session.println(metrics.line());
+                    break;
+
+                case "load":                 // [reset], requests per range we own, for the rebalancer
+                    session.println(load.report(p.length > 1 && p[1].equalsIgnoreCase("reset")));
+                    break;
+                
+                case "lookup":
+                case "delete":
+                    session.println(route(p[0].toLowerCase(), Ring.key(p[1]), null,
+                                          p.length > 2 ? Integer.parseInt(p[2]) : Ring.MAX_HOPS));
+                    break;
+
+                case "insert":               // key value, the value is the rest of the line
+                    String value = Ring.rest(line.trim(), 2);
+                    session.println(value == null ? "err no value" : route("insert", Ring.key(p[1]), value, Ring.MAX_HOPS));
+                    break;
+
+                case "hop":                  // ttl ms verb key [value], a routed request passed on
+                    String[] h = line.trim().split(" ", 6);
+                    if (!Ring.routed(h[3]))
+                        session.println("err unknown command " + h[3]);
+                    else if (h[3].equalsIgnoreCase("insert") && h.length < 6)
+                        session.println("err no value");
+                    else
+                        session.println(route(h[3].toLowerCase(), Ring.key(h[4]), h.length > 5 ? h[5] : null,
+                                              Integer.parseInt(h[1]), PeerPool.deadline(Long.parseLong(h[2]))));
+                    break;
+
+                case "findsucc":             // key [ttl]
+                    try {
+                        Finger f = findSuccessor(Long.parseLong(p[1]),
+                                                 p.length > 2 ? Integer.parseInt(p[2]) : Ring.MAX_HOPS);
+                        session.println("succ " + f.id + " " + f.info.ip + " " + f.info.port);
+                    } catch (IOException e) {
+                        session.println("err " + e.getMessage());
+                    }
+                    break;
+
+                case "getpred":
+                    session.println("pred " + predecessor + " " + predecessorIP + " " + predecessorPort);
+                    break;
+
+                default:
+                    session.println("err");
+            }
         }
+    }
 
-        public void run() {
-            try (BufferedReader in = new BufferedReader(
-                     new InputStreamReader(socket.getInputStream()));
-                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+    private boolean owns(long key) {
+        RingSnapshot view = ringView;
+        if (view != null) 
+            return view.owner(view.successorIndex(key)) == id;
+        if (!inRing())
+            return entering || migration.forwardTo(key) != null;   // joining, or forwarding since we left
+        return Ring.inRange(predecessor, id, key);
+    }
 
-                String line = in.readLine();
+    //not before an enter completes nor after an exit
+    private boolean inRing() {
+        return ringView != null || predecessor != -1;
+    }
 
-                if (line == null) {
-                    return;
-                }
+    //the position ending the range of one of our keys
+    private long positionOf(long key) {
+        RingSnapshot view = ringView;
+        return view != null ? view.successor(key) : id;
+    }
 
-                String[] p = line.trim().split(" ");
-                
-                switch (p[0].toLowerCase()) {
-                    case "neighbors":            //from bootstrap on join
-                        predecessor = Integer.parseInt(p[1]);
-                        successor   = Integer.parseInt(p[4]);
-                        successorIP  = p[5];
-                        successorPort= Integer.parseInt(p[6]); 
-
-                        System.out.println("Successful entry. Key range: [" +
-                                          predecessor + ", " + id + "]");
-                        System.out.println("Predecessor: " + predecessor +
-                                           "  Successor: " + successor);
-
-                        requestKeysFromSuccessor(); // pull keys from successor
-
-                        break;
-
-                    case "setsucc":              // bootstrap to succ changed
-                        successor = Integer.parseInt(p[1]);
-                        //successorIP   = socket.getInetAddress().getHostAddress();
-                        successorIP  = p[2];
-                        //successorPort = Integer.parseInt(p[2]);      // bootstrap passes port in p[2]
-                        successorPort= Integer.parseInt(p[3]);
-
-                        System.out.println("Updated successor: " + successor);
-                        break;
-
-                    case "setpred":              // bootstrap to pred changed
-                        predecessor = Integer.parseInt(p[1]);
-                        System.out.println("Updated predecessor: " + predecessor);
-                        break;
-
-                    case "transfer":
-                        int fromKey = Integer.parseInt(p[1]);
-                        int toKey   = Integer.parseInt(p[2]);
-                        int count   = Integer.parseInt(p[3]);
-
-                        for (int i = 0; i < count; i++) {
-                            String kv = in.readLine();
-                            String[] kvp = kv.split(" ", 2);
-                            keyValueStore.put(Integer.parseInt(kvp[0]), kvp[1]);
-                        }
-
-                        out.println("ack");
-                        break;
-                    
-                    case "getkeys":        // requester: predID myID
-                        int from = Integer.parseInt(p[1]);
-                        int to   = Integer.parseInt(p[2]);
-                    
-                        // collect all keys in [from, to]
-                        List<Integer> list = new ArrayList<>();
-                        keyValueStore.forEach((k,v) -> {
-                            if (inRange(from, to, k)) list.add(k);
-                        });
-                    
-                        out.println("count " + list.size());
-                    
-                        for (int k : list) {
-                            out.println(k + " " + keyValueStore.get(k));
-                            keyValueStore.remove(k);           // remove from my store
-                        }
-                        return;
-                    
-                    case "lookup":
-                        int key = Integer.parseInt(p[1]);
-                        if (keyValueStore.containsKey(key))
-                            out.println("found " + keyValueStore.get(key));
-                        else
-                            out.println("notfound");
-                        break;
-
-                    case "insert":
-                        keyValueStore.put(Integer.parseInt(p[1]), p[2]);
-                        out.println("ok");
-                        break;
-
-                    case "delete":
-                        out.println( keyValueStore.remove(Integer.parseInt(p[1])) != null ?
-                                     "deleted" : "notfound");
-                        break;
-
-                    default:
-                        out.println("err");
+    // answer when the key is ours, otherwise forward one hop closer to its owner
+    private String route(String verb, long key, String value, int ttl) {
+        return route(verb, key, value, ttl, PeerPool.deadline(PeerPool.TIMEOUT_MS));
+    }
+
+    //the same, answered by the given System.nanoTime(); hops after us get what is left of it
+    private String route(String verb, long key, String value, int ttl, long deadline) {
+        Migration.Moved moved = null;
+        Lock serving = migration.serving();             // a cutover of our ranges waits for local work
+        if (!Migration.acquire(serving))
+            return "err busy path " + id;
+        try {
+            if (owns(key) && (moved = migration.forwardTo(key)) == null) {
+                load.record(positionOf(key), key);
+                return Ring.withHop(id, applyLocal(verb, key, value));
+            }
+        } finally {
+            serving.unlock();
+        }
+        boolean read = verb.equals("lookup");
+        Finger owner = null;
+        RingSnapshot view = members;
+        if (Replicator.READ_ANY && read && Replicator.replicates(view, id, key)) {
+            String copy = replicaStore.get(key);
+            if (copy != null)
+                return "found " + copy + " path " + id;         // served by a replica of its range
+            owner = ownerIn(view, key);                         // a miss is the owner's to answer, not the next hop's
+        }
+        if (ttl <= 0 || (moved == null && !inRing())) {
+            return "notowner " + ringEpoch + " path " + id;    // out of hops, a client that asked us directly, or not in the ring
+        }
+
+        String stale = !read && Replicator.READ_ANY ? replicaStore.get(key) : null;
+        Finger next = moved != null ? new Finger(moved.owner, moved.target)   // just handed over
+                    : owner != null ? owner : nextHop(key);
+        long start = System.nanoTime();
+        try {
+            String reply = peers.call(next.info, Ring.hop(verb, key, value, ttl - 1, deadline), PeerPool.left(deadline, next.info));
+            metrics.outbound(System.nanoTime() - start, true);
+            if (stale != null)
+                replicaStore.remove(key, stale);            // older than the write, unless the owner's copy already came
+            return Ring.withHop(id, reply);
+        } catch (IOException e) {
+            metrics.outbound(System.nanoTime() - start, false);
+            metrics.count("outbound." + PeerPool.reason(e), 1);
+            if (ringView != null) 
+                gossip.soon();                              // our table may still have a server that left
+            return "err " + PeerPool.reason(e) + " path " + id + "," + next.id;
+        }
+    }
+
+    //where a key of a batch goes, null when it is ours; the same choice route() makes
+    private ServerInfo batchTarget(long key) {
+        if (owns(key)) {
+            Migration.Moved moved = migration.forwardTo(key);
+            return moved != null ? moved.target : null;
+        }
+        return inRing() ? nextHop(key).info : Batch.NOWHERE;
+    }
+
+    private String applyLocal(String verb, long key, String value) {
+        switch (verb) {
+            case "lookup":
+                String v = keyValueStore.get(key);
+                return v != null ? "found " + v : "notfound";
+            case "insert":
+                keyValueStore.put(key, value);
+                replicator.write(key, value);
+                return "ok";
+            default:
+                if (keyValueStore.remove(key) == null) 
+                    return "notfound";
+                replicator.write(key, null);
+                return "deleted";
+        }
+    }
+
+    //closest finger preceding key, or the successor when it owns the key;
+    //with virtual nodes straight to the owner
+    private Finger nextHop(long key) {
+        RingSnapshot view = ringView;
+        if (view != null) 
+            return ownerIn(view, key);
+        if (!Ring.inRange(id, successor, key)) {
+            for (int i = Ring.BITS - 1; i >= 0; i--) {
+                Finger f = fingers[i];
+                if (f != null && Ring.between(id, key, f.id)) return f;
+            }
+        }
+        return node(successor, successorIP, successorPort);
+    }
+
+    private Finger findSuccessor(long key, int ttl) throws IOException {
+        if (owns(key)) 
+            return node(id, selfIP, port);
+        RingSnapshot view = ringView;
+        if (view != null) 
+            return ownerIn(view, key);
+        if (Ring.inRange(id, successor, key)) 
+            return node(successor, successorIP, successorPort);
+        if (ttl <= 0) 
+            throw new IOException("ttl exceeded");
+
+        String[] r = peers.call(nextHop(key).info, "findsucc " + key + " " + (ttl - 1)).split(" ");
+        if (!r[0].equals("succ")) 
+            throw new IOException("bad reply from finger: " + String.join(" ", r));
+        return node(Long.parseLong(r[1]), r[2], Integer.parseInt(r[3]));
+    }
+
+    //periodic: adopt a closer successor if one joined, then refresh the finger table
+    private void stabilize() {
+        if (successor == -1) 
+            return;                    // not in the ring
+        if (ringView != null) {                         // a lost push is made up by gossip
+            if (replicator.enabled()) 
+                refreshSuccessorList();
+            return;                    // no fingers needed, the table names every owner
+        }
+        try {
+            String[] r = peers.call(successor(), "getpred").split(" ");
+            long x = Long.parseLong(r[1]);
+            if (r[0].equals("pred") && x != -1 && x != id && Ring.between(id, successor, x)) {
+                successor     = x;
+                successorIP   = r[2];
+                successorPort = Integer.parseInt(r[3]);
+                System.out.println("Updated successor: " + successor);
+            }
+        } catch (IOException | RuntimeException ignore) {
+            //keep the current successor
+        }
+
+        for (int i = 0; i < Ring.BITS; i++) {
+            long start = Ring.fingerStart(id, i);
+            Finger prev = i > 0 ? fingers[i - 1] : null;
+            if (prev != null && Ring.inRange(id, prev.id, start)) {
+                fingers[i] = prev;                 // on a wide ring most low fingers share one server
+                continue;
+            }
+            try {
+                fingers[i] = findSuccessor(start, Ring.MAX_HOPS);
+            } catch (IOException | RuntimeException e) {
+                fingers[i] = null;
+            }
+        }
+
+        if (replicator.enabled()) 
+            refreshSuccessorList();
+    }
+
+    //replicas are our successor plus the head of its successor list;
+    //with virtual nodes the next other servers after our own id in the table
+    private void refreshSuccessorList() {
+        try {
+            List<Finger> list = new ArrayList<>();
+            RingSnapshot view = ringView;
+            if (view != null) {
+                int at = view.successorIndex(id + 1);
+                for (int i = 0; i < view.size() && list.size() < Replicator.FACTOR - 1; i++, at = view.next(at)) {
+                    long sid = view.owner(at);
+                    if (sid != id && list.stream().noneMatch(g -> g.id == sid))
+                        list.add(new Finger(sid, view.server(at)));
+                }
+            } else {
+                String[] r = peers.call(successor(), "succlist").split(" ");
+                list.add(node(successor, successorIP, successorPort));
+                for (int i = 1; i + 2 < r.length && list.size() < Replicator.FACTOR - 1; i += 3) {
+                    long sid = Long.parseLong(r[i]);
+                    if (sid == id || sid == -1 || list.stream().anyMatch(f -> f.id == sid)) 
+                        continue;
+                    list.add(node(sid, r[i + 1], Integer.parseInt(r[i + 2])));
                 }
-            } catch (IOException e) {
-                System.out.println("Client Handler Error: " + e.getMessage());
             }
+            successorList = list;
+
+            List<ServerInfo> targets = new ArrayList<>();
+            list.forEach(f -> targets.add(f.info));
+            replicator.setTargets(targets);
+        } catch (IOException | RuntimeException ignore) {
+            //keep the current list
         }
     }
 
-    private boolean inRange(int pred, int curr, int key) {
-        if (pred < curr) return key > pred && key <= curr;
-        // wrap‑around
-        return key > pred || key <= curr;
+    //the bootstrap advertises itself as localhost, so reach it the way we were configured to
+    private Finger node(long nodeId, String ip, int nodePort) {
+        if (nodeId == 0) 
+            return new Finger(0, bootstrap());
+        return new Finger(nodeId, new ServerInfo(ip, nodePort));
+    }
+
+    static class Finger {
+        final long id;
+        final ServerInfo info;
+
+        Finger(long id, ServerInfo info) {
+            this.id = id;
+            this.info = info;
+        }
     }
 
     //helper to ask successor to send keys
@@ -239,48 +771,49 @@ public class NameServer {
         if (successor == id) {
             return;                    // only node in ring
         }
+        requestKeys(successor(), predecessor, id);
+    }
 
-        try (Socket s = new Socket(successorIP, successorPort);
-             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
-             PrintWriter out = new PrintWriter(s.getOutputStream(), true)) {
+    //pull (from, to] from the server that held it so far
+    private void requestKeys(ServerInfo holder, long from, long to) {
+        PeerPool.Connection c;
+        try {
+            c = peers.borrow(holder, PeerPool.BULK_MS);
+        } catch (IOException ignore) {
+            return;
+        }
 
-            out.println("getkeys " + predecessor + " " + id);   // request
-            String first = in.readLine();                        // count line from succ
+        try {
+            c.out.println("getkeys " + from + " " + to);   // request
+            String first = c.in.readLine();                        // count line from succ
 
-            if (first == null || !first.startsWith("count")) 
+            if (first == null || !first.startsWith("count")) {
+                peers.invalidate(c);
                 return;
+            }
             
             int n = Integer.parseInt(first.split(" ")[1]);
+            Map<Long, String> received = new HashMap<>();
 
             for (int i = 0; i < n; i++) {
-                String kv = in.readLine();
+                String kv = c.in.readLine();
                 String[] kvp = kv.split(" ", 2);
 
-                keyValueStore.put(Integer.parseInt(kvp[0]), kvp[1]);
+                received.put(Long.parseLong(kvp[0]), kvp[1]);
             }
+            keyValueStore.putAll(received);
+            peers.release(c);
         } catch (IOException ignore) {
-            //Ignore
+            peers.invalidate(c);
         }
     }
 
-    private void remoteInsertToSuccessor(int k, String v) {
-        try (Socket s = new Socket(successorIP, successorPort);
-             PrintWriter out = new PrintWriter(s.getOutputStream(), true)) {
-            out.println("insert " + k + " " + v);
-        } catch (IOException ignore) {
-            //ignore
-        }
+    private ServerInfo bootstrap() {
+        return new ServerInfo(bootstrapIP, bootstrapPort);
     }
 
-    private void sendCommandToBootstrap(String message) {
-        try (
-            Socket socket = new Socket(bootstrapIP, bootstrapPort);
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true)
-        ) {
-            out.println(message);
-        } catch (IOException e) {
-            System.out.println("Error connecting to Bootstrap Server: " + e.getMessage());
-        }
+    private ServerInfo successor() {
+        return node(successor, successorIP, successorPort).info;
     }
 
     public static void main(String[] args) throws IOException {
@@ -291,7 +824,7 @@ public class NameServer {
 
         BufferedReader br = new BufferedReader(new FileReader(args[0]));
 
-        int id = Integer.parseInt(br.readLine().trim());
+        long id = Long.parseLong(br.readLine().trim());
         int port = Integer.parseInt(br.readLine().trim());
         
         String[] bootstrapInfo = br.readLine().trim().split(" ");
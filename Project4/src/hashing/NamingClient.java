@@ -0,0 +1,218 @@
+package hashing;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+// client for the bootstrap's pipelined protocol: "req <id> <verb> ..." answered by "res <id> ..."
+public class NamingClient implements Closeable {
+    private final String host;
+    private final int port;
+    private final Socket socket;
+    private final BufferedReader in;
+    private final PrintWriter out;
+    private final AtomicLong nextId = new AtomicLong();
+    private final ConcurrentHashMap<Long, CompletableFuture<Reply>> pending = new ConcurrentHashMap<>();
+
+    public NamingClient(String host, int port) throws IOException {
+        this.host = host;
+        this.port = port;
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())));
+
+        Thread reader = new Thread(this::readReplies, "naming-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public CompletableFuture<Reply> lookup(long key) {
+        return send("lookup " + key);
+    }
+
+    public CompletableFuture<Reply> insert(long key, String value) {
+        return send("insert " + key + " " + value);
+    }
+
+    public CompletableFuture<Reply> delete(long key) {
+        return send("delete " + key);
+    }
+
+    //names are hashed onto the ring by the server, so they may not contain spaces
+    public CompletableFuture<Reply> lookup(String name) {
+        return send("lookup " + name);
+    }
+
+    public CompletableFuture<Reply> insert(String name, String value) {
+        return send("insert " + name + " " + value);
+    }
+
+    public CompletableFuture<Reply> delete(String name) {
+        return send("delete " + name);
+    }
+
+    //keys in [from, to] in key order, streamed on a connection of its own; returns how many were read
+    public long scan(long from, long to, long limit, BiConsumer<Long, String> sink) throws IOException {
+        try (Socket s = new Socket(host, port)) {
+            BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream()));
+            PrintWriter w = new PrintWriter(new OutputStreamWriter(s.getOutputStream()));
+            w.print("scan " + from + " " + to + " " + limit + "\n");
+            w.flush();
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.startsWith("end ")) return Long.parseLong(line.substring(4));
+                if (line.startsWith("err")) throw new IOException("scan failed: " + line.substring(3).trim());
+                int sp = line.indexOf(' ');
+                sink.accept(Long.parseLong(line.substring(0, sp)), line.substring(sp + 1));
+            }
+            throw new EOFException("server closed the connection");
+        }
+    }
+
+    //one status per key in the order given, "found <value>" or "notfound"; the server splits the
+    //keys by owner and asks all of them at once, on a connection of its own
+    public List<String> mget(List<String> keys) throws IOException {
+        return batch("mget", keys);
+    }
+
+    //"ok" per entry
+    public List<String> mput(Map<String, String> entries) throws IOException {
+        List<String> lines = new ArrayList<>(entries.size());
+        entries.forEach((k, v) -> lines.add(k + " " + v));
+        return batch("mput", lines);
+    }
+
+    //"deleted" or "notfound" per key
+    public List<String> mdelete(List<String> keys) throws IOException {
+        return batch("mdelete", keys);
+    }
+
+    private List<String> batch(String verb, List<String> lines) throws IOException {
+        try (Socket s = new Socket(host, port)) {
+            BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream()), 1 << 16);
+            Writer w = new BufferedWriter(new OutputStreamWriter(s.getOutputStream()), 1 << 16);
+            w.write(verb + " " + lines.size() + "\n");
+            for (String line : lines) w.write(line + "\n");
+            w.flush();
+            String head = r.readLine();
+            if (head == null || !head.startsWith("count "))
+                throw new IOException(verb + " failed: " + head);
+            List<String> out = new ArrayList<>(lines.size());
+            for (int i = 0; i < lines.size(); i++) {
+                String line = r.readLine();
+                if (line == null) throw new EOFException("server closed the connection");
+                out.add(line);
+            }
+            return out;
+        }
+    }
+
+    //many requests may be outstanding, replies complete them in whatever order they arrive
+    private CompletableFuture<Reply> send(String request) {
+        long reqId = nextId.incrementAndGet();
+        CompletableFuture<Reply> f = new CompletableFuture<>();
+        pending.put(reqId, f);
+        synchronized (out) {
+            out.print("req " + reqId + " " + request + "\n");
+            out.flush();
+        }
+        if (out.checkError()) fail(new IOException("connection lost"));
+        return f;
+    }
+
+    private void readReplies() {
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] p = line.split(" ", 3);
+                if (p.length < 3 || !p[0].equals("res")) continue;
+                CompletableFuture<Reply> f = pending.remove(Long.parseLong(p[1]));
+                if (f != null) f.complete(new Reply(p[2]));
+            }
+            fail(new EOFException("server closed the connection"));
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        for (Long reqId : pending.keySet()) {
+            CompletableFuture<Reply> f = pending.remove(reqId);
+            if (f != null) f.completeExceptionally(e);
+        }
+    }
+
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    // parsed reply: status word, optional value and the servers that handled it
+    public static class Reply {
+        public final String status;
+        public final String value;
+        public final List<Long> path;
+
+        Reply(String raw) {
+            String[] s = Ring.status(raw).split(" ", 2);
+            status = s[0];
+            value  = s.length > 1 ? s[1] : null;
+            path   = Ring.path(raw);
+        }
+
+        public boolean ok() {
+            return !status.equals("err") && !status.equals("notfound") && !status.equals("notowner");
+        }
+
+        public String toString() {
+            return status + (value != null ? " " + value : "") + " via " + path;
+        }
+    }
+
+    // java hashing.NamingClient <host> <port> lookup <key> | insert <key> <value> | delete <key> | scan <from> <to> [limit]
+    //                          | mget <key>... | mput <key> <value>... | mdelete <key>...
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.out.println("Usage: java NamingClient <host> <port> lookup|insert|delete <key> [value] | scan <from> <to> [limit]"
+                               + " | mget|mdelete <key>... | mput <key> <value>...");
+            return;
+        }
+        try (NamingClient client = new NamingClient(args[0], Integer.parseInt(args[1]))) {
+            if (args[2].equalsIgnoreCase("scan")) {
+                long n = client.scan(Long.parseLong(args[3]), Long.parseLong(args[4]),
+                                     args.length > 5 ? Long.parseLong(args[5]) : Long.MAX_VALUE,
+                                     (k, v) -> System.out.println(k + " " + v));
+                System.out.println(n + " keys");
+                return;
+            }
+            if (args[2].toLowerCase().matches("mget|mput|mdelete")) {
+                List<String> keys = new ArrayList<>();
+                Map<String, String> entries = new LinkedHashMap<>();
+                boolean put = args[2].equalsIgnoreCase("mput");
+                for (int i = 3; i < args.length; i += put ? 2 : 1) {
+                    keys.add(args[i]);
+                    if (put) entries.put(args[i], args[i + 1]);
+                }
+                if (put) keys = new ArrayList<>(entries.keySet());      // a repeated key is sent once
+                List<String> out = put ? client.mput(entries)
+                                 : args[2].equalsIgnoreCase("mget") ? client.mget(keys) : client.mdelete(keys);
+                for (int i = 0; i < keys.size(); i++) System.out.println(keys.get(i) + " " + out.get(i));
+                return;
+            }
+            String key = args[3];                           // a ring position or any name
+            CompletableFuture<Reply> f;
+            switch (args[2].toLowerCase()) {
+                case "lookup": f = client.lookup(key); break;
+                case "insert": f = client.insert(key, String.join(" ", Arrays.copyOfRange(args, 4, args.length))); break;
+                case "delete": f = client.delete(key); break;
+                default:
+                    System.out.println("Unknown command " + args[2]);
+                    return;
+            }
+            System.out.println(f.get(10, TimeUnit.SECONDS));
+        }
+    }
+}
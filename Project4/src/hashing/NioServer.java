@@ -0,0 +1,356 @@
+package hashing;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// single selector thread accepting and reading line based requests,
+// handler logic runs on a small worker pool. a routed request holds a worker on every server
+// along its path while it waits for the next hop, so with a fixed pool only the request
+// deadlines bound how long such chains can starve each other
+class NioServer {
+
+    interface Handler {
+        void handle(Session session, String line) throws IOException;
+    }
+
+    private static final int READ_BUFFER = 64 * 1024;
+    private static final int MAX_LINE = Integer.getInteger("net.maxLine", 1 << 20);       // longer closes the connection
+    private static final int MAX_QUEUED = Integer.getInteger("net.maxQueued", 4096);      // lines; reading pauses above
+
+    private final int port;
+    private final Handler handler;
+    private final ThreadPoolExecutor workers;
+    private final AtomicInteger open = new AtomicInteger();
+    private volatile Selector selector;
+    private volatile boolean stopped = false;
+
+    // at least 8: a routed request holds a worker on every server along its path
+    NioServer(int port, Handler handler) {
+        this(port, Integer.getInteger("workers", Math.max(8, 2 * Runtime.getRuntime().availableProcessors())), handler);
+    }
+
+    NioServer(int port, int workerCount, Handler handler) {
+        this.port = port;
+        this.handler = handler;
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "worker-" + port);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    int connections() {
+        return open.get();
+    }
+
+    //sessions waiting for a worker
+    int queued() {
+        return workers.getQueue().size();
+    }
+
+    //event loop, returns once close() is called or the selector fails
+    void serve() throws IOException {
+        selector = Selector.open();
+        try (ServerSocketChannel ssc = ServerSocketChannel.open()) {
+            ssc.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            ssc.bind(new InetSocketAddress(port), 1024);
+            ssc.configureBlocking(false);
+            ssc.register(selector, SelectionKey.OP_ACCEPT);
+
+            ByteBuffer buf = ByteBuffer.allocateDirect(READ_BUFFER);   // shared, only used by this thread
+            while (!stopped) {
+                selector.select();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) accept(ssc);
+                        else {
+                            if (key.isReadable()) ((Session) key.attachment()).onReadable(buf);
+                            if (key.isValid() && key.isWritable()) ((Session) key.attachment()).onWritable();
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        Object s = key.attachment();
+                        if (s instanceof Session) ((Session) s).close();
+                    }
+                }
+            }
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                if (key.attachment() instanceof Session) ((Session) key.attachment()).close();
+            }
+        } finally {
+            selector.close();
+        }
+    }
+
+    //stop listening and drop every connection; requests still being handled are interrupted
+    void close() {
+        stopped = true;
+        Selector s = selector;
+        if (s != null) s.wakeup();
+        workers.shutdownNow();
+    }
+
+    private void accept(ServerSocketChannel ssc) throws IOException {
+        SocketChannel ch;
+        while ((ch = ssc.accept()) != null) {
+            ch.configureBlocking(false);
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Session s = new Session(ch);
+            s.key = ch.register(selector, SelectionKey.OP_READ, s);
+            open.incrementAndGet();
+        }
+    }
+
+    // one connection; lines are handled in arrival order by at most one worker at a time
+    class Session {
+        private static final int MAX_PENDING_OUT = 1 << 20;   // writers block above this
+
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private byte[] partial = new byte[0];                  // bytes of an unfinished line
+
+        private final ArrayDeque<String> lines = new ArrayDeque<>();
+        private boolean scheduled = false;
+        private boolean eof = false;
+        private boolean paused = false;                        // OP_READ off until the queue drains
+
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        private int pendingOut = 0;
+        private volatile boolean closed = false;
+        private volatile Object attachment;                    // per-connection handler state
+        private volatile long sent = 0;                        // lines written, to tell if a failed request answered
+        private volatile long consumed = 0;                    // lines a handler read past its first
+
+        Session(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        String remoteHost() {
+            return channel.socket().getInetAddress().getHostAddress();
+        }
+
+        Object attachment() {
+            return attachment;
+        }
+
+        void attach(Object o) {
+            attachment = o;
+        }
+
+        //called by the selector thread
+        private void onReadable(ByteBuffer buf) throws IOException {
+            buf.clear();
+            int n = channel.read(buf);
+            if (n < 0) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                synchronized (lines) {
+                    eof = true;
+                    lines.notifyAll();
+                }
+                closeIfIdle();
+                return;
+            }
+            buf.flip();
+
+            List<String> complete = new ArrayList<>();
+            int start = buf.position();
+            for (int i = buf.position(); i < buf.limit(); i++) {
+                if (buf.get(i) == '\n') {
+                    complete.add(decode(buf, start, i));
+                    start = i + 1;
+                }
+            }
+            if (partial.length + buf.limit() - start > MAX_LINE)
+                throw new IOException("line over " + MAX_LINE + " bytes from " + remoteHost());
+            if (start < buf.limit()) {
+                byte[] rest = new byte[partial.length + buf.limit() - start];
+                System.arraycopy(partial, 0, rest, 0, partial.length);
+                buf.position(start);
+                buf.get(rest, partial.length, buf.limit() - start);
+                partial = rest;
+            }
+            if (complete.isEmpty()) return;
+
+            boolean submit;
+            synchronized (lines) {
+                lines.addAll(complete);
+                lines.notifyAll();
+                submit = !scheduled;
+                scheduled = true;
+                if (lines.size() > MAX_QUEUED && !eof) {
+                    paused = true;                              // a slow handler holds the client back
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+            }
+            if (submit) workers.execute(this::drain);
+        }
+
+        private String decode(ByteBuffer buf, int start, int end) throws IOException {
+            int len = end - start;
+            if (partial.length + len > MAX_LINE)
+                throw new IOException("line over " + MAX_LINE + " bytes from " + remoteHost());
+            if (len > 0 && buf.get(end - 1) == '\r') len--;
+            byte[] bytes = new byte[partial.length + len];
+            System.arraycopy(partial, 0, bytes, 0, partial.length);
+            for (int i = 0; i < len; i++) bytes[partial.length + i] = buf.get(start + i);
+            partial = new byte[0];
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        //worker side: handle queued lines one after another
+        private void drain() {
+            while (true) {
+                String line;
+                synchronized (lines) {
+                    line = take();
+                    if (line == null) {
+                        scheduled = false;
+                        break;
+                    }
+                }
+                long replies = sent, reads = consumed;
+                try {
+                    if (!line.isEmpty()) handler.handle(this, line);
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("Error handling '" + line + "': " + e);
+                    if (sent == replies && consumed == reads) {
+                        // e.g. a missing key or a bad number: answer it so the next reply pairs with the next request
+                        println(e instanceof IOException ? "err " + PeerPool.reason((IOException) e) : "err bad request");
+                    } else {
+                        close();                                // half answered or half read: what follows cannot be paired
+                        synchronized (lines) {
+                            lines.clear();
+                            scheduled = false;
+                        }
+                        return;
+                    }
+                }
+            }
+            closeIfIdle();
+        }
+
+        // blocking read of the next line on this connection, null once the peer closed
+        String readLine() {
+            synchronized (lines) {
+                while (lines.isEmpty() && !eof && !closed) {
+                    try {
+                        lines.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                }
+                String line = take();
+                if (line != null) consumed++;
+                return line;
+            }
+        }
+
+        //next queued line, reading again once the queue is down to half; caller holds lines
+        private String take() {
+            String line = lines.poll();
+            if (paused && lines.size() <= MAX_QUEUED / 2 && !closed) {
+                paused = false;
+                try {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                    selector.wakeup();
+                } catch (CancelledKeyException ignore) {
+                    //closed meanwhile
+                }
+            }
+            return line;
+        }
+
+        void println(String line) {
+            ByteBuffer b = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+            synchronized (outbound) {
+                while (pendingOut > MAX_PENDING_OUT && !closed) {
+                    try {
+                        outbound.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (closed) return;
+                sent++;
+                try {
+                    if (outbound.isEmpty()) channel.write(b);
+                } catch (IOException e) {
+                    close();
+                    return;
+                }
+                if (b.hasRemaining()) {
+                    outbound.add(b);
+                    pendingOut += b.remaining();
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    selector.wakeup();
+                }
+            }
+        }
+
+        //called by the selector thread
+        private void onWritable() throws IOException {
+            synchronized (outbound) {
+                while (!outbound.isEmpty()) {
+                    ByteBuffer b = outbound.peek();
+                    int n = channel.write(b);
+                    pendingOut -= n;
+                    if (b.hasRemaining()) break;
+                    outbound.poll();
+                }
+                if (outbound.isEmpty()) key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                outbound.notifyAll();
+            }
+            closeIfIdle();
+        }
+
+        private void closeIfIdle() {
+            boolean idle;
+            synchronized (lines) {
+                idle = eof && !scheduled;
+            }
+            synchronized (outbound) {
+                idle &= outbound.isEmpty();
+            }
+            if (idle) close();
+        }
+
+        void close() {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+            }
+            open.decrementAndGet();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+                //ignore
+            }
+            synchronized (lines) {
+                lines.notifyAll();
+            }
+            synchronized (outbound) {
+                outbound.notifyAll();
+            }
+            if (attachment instanceof Closeable) {
+                try {
+                    ((Closeable) attachment).close();          // e.g. a transfer that never got its commit
+                } catch (IOException ignore) {
+                    //ignore
+                }
+            }
+        }
+    }
+}
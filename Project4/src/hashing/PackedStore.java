@@ -0,0 +1,332 @@
+package hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+// store for large key counts without a boxed Long, tree node and String per entry:
+// keys live in sorted long[] pages (a one-level B+ tree), each page packs its values as
+// UTF-8 into a single byte[] slab addressed by offset and length. 16 bytes plus the value per
+// entry, up to twice that while pages and slabs are half full; strings are only built on reads
+class PackedStore implements KeyValueStore {
+    private static final int PAGE = 512;                // entries per page before it splits
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private Page[] pages = { new Page() };              // sorted, non-overlapping, never empty but for a lone page
+    private int pageCount = 1;
+    private volatile int size;
+
+    public String get(long key) {
+        lock.readLock().lock();
+        try {
+            Page p = pages[pageFor(key)];
+            int i = p.find(key);
+            return i < 0 ? null : p.value(i);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public String put(long key, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        lock.writeLock().lock();
+        try {
+            return putLocked(key, bytes);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public String remove(long key) {
+        lock.writeLock().lock();
+        try {
+            int at = pageFor(key);
+            int i = pages[at].find(key);
+            if (i < 0)
+                return null;
+            String old = pages[at].value(i);
+            removeAt(at, i);
+            return old;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean remove(long key, String expected) {
+        byte[] bytes = expected.getBytes(StandardCharsets.UTF_8);
+        lock.writeLock().lock();
+        try {
+            int at = pageFor(key);
+            int i = pages[at].find(key);
+            if (i < 0 || !pages[at].valueEquals(i, bytes))
+                return false;
+            removeAt(at, i);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void putAll(Map<Long, String> entries) {
+        // encode outside the lock, then apply in key order so neighbouring inserts hit the same page
+        TreeMap<Long, byte[]> encoded = new TreeMap<>();
+        entries.forEach((k, v) -> encoded.put(k, v.getBytes(StandardCharsets.UTF_8)));
+        lock.writeLock().lock();
+        try {
+            encoded.forEach(this::putLocked);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeAll(Map<Long, String> expected) {
+        lock.writeLock().lock();
+        try {
+            expected.forEach((k, v) -> {
+                int at = pageFor(k);
+                int i = pages[at].find(k);
+                if (i >= 0 && pages[at].valueEquals(i, v.getBytes(StandardCharsets.UTF_8)))
+                    removeAt(at, i);
+            });
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public NavigableMap<Long, String> extractRange(long pred, long curr) {
+        NavigableMap<Long, String> out = new TreeMap<>();
+        lock.writeLock().lock();
+        try {
+            if (pred < curr) {
+                drain(pred + 1, curr, out);
+            } else {
+                if (pred < Long.MAX_VALUE)
+                    drain(pred + 1, Long.MAX_VALUE, out);
+                drain(Long.MIN_VALUE, curr, out);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return out;
+    }
+
+    public NavigableMap<Long, String> range(long lo, long hi, int limit) {
+        NavigableMap<Long, String> out = new TreeMap<>();
+        lock.readLock().lock();
+        try {
+            for (int p = pageFor(lo); p < pageCount && out.size() < limit; p++) {
+                Page page = pages[p];
+                int i = page.find(lo);
+                for (i = i < 0 ? -i - 1 : i; i < page.n && out.size() < limit; i++) {
+                    if (page.keys[i] > hi) return out;
+                    out.put(page.keys[i], page.value(i));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return out;
+    }
+
+    public NavigableMap<Long, String> snapshot() {
+        NavigableMap<Long, String> out = new TreeMap<>();
+        lock.readLock().lock();
+        try {
+            for (int p = 0; p < pageCount; p++) {
+                Page page = pages[p];
+                for (int i = 0; i < page.n; i++) out.put(page.keys[i], page.value(i));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return out;
+    }
+
+    //last page whose first key is <= key, or the first page
+    private int pageFor(long key) {
+        int lo = 1, hi = pageCount - 1, at = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (pages[mid].keys[0] <= key) {
+                at = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return at;
+    }
+
+    private String putLocked(long key, byte[] bytes) {
+        int at = pageFor(key);
+        Page p = pages[at];
+        int i = p.find(key);
+        if (i >= 0) {
+            String old = p.value(i);
+            p.set(i, bytes);
+            return old;
+        }
+        if (p.n == PAGE && at == pageCount - 1 && -i - 1 == p.n) {
+            p = new Page();                                 // appending in key order: leave this page full
+            insertPage(at + 1, p);
+            i = -1;
+        } else if (p.n == PAGE) {
+            Page right = p.split();
+            insertPage(at + 1, right);
+            if (key >= right.keys[0])
+                p = right;
+            i = p.find(key);
+        }
+        p.insert(-i - 1, key, bytes);
+        size++;
+        return null;
+    }
+
+    private void removeAt(int at, int i) {
+        pages[at].delete(i, i + 1);
+        size--;
+        if (pages[at].n == 0)
+            dropPage(at);
+    }
+
+    //move every key in [lo, hi] to out
+    private void drain(long lo, long hi, NavigableMap<Long, String> out) {
+        int at = pageFor(lo);
+        while (at < pageCount && pages[at].n > 0 && pages[at].keys[0] <= hi) {
+            Page p = pages[at];
+            int from = p.find(lo);
+            if (from < 0) from = -from - 1;
+            int to = p.find(hi);
+            to = to < 0 ? -to - 1 : to + 1;
+            for (int i = from; i < to; i++) out.put(p.keys[i], p.value(i));
+            p.delete(from, to);
+            size -= to - from;
+            if (p.n == 0) {
+                dropPage(at);               // the next page slides into at
+            } else {
+                at++;
+            }
+        }
+    }
+
+    private void insertPage(int at, Page page) {
+        if (pageCount == pages.length)
+            pages = Arrays.copyOf(pages, pageCount * 2);
+        System.arraycopy(pages, at, pages, at + 1, pageCount - at);
+        pages[at] = page;
+        pageCount++;
+    }
+
+    private void dropPage(int at) {
+        if (pageCount == 1)
+            return;                 // keep one empty page to insert into
+        System.arraycopy(pages, at + 1, pages, at, pageCount - at - 1);
+        pages[--pageCount] = null;
+    }
+
+    // up to PAGE sorted keys; value i is data[offsets[i], offsets[i] + lengths[i])
+    private static final class Page {
+        int n;
+        long[] keys = new long[16];
+        int[] offsets = new int[16];
+        int[] lengths = new int[16];
+        byte[] data = new byte[64];
+        int used;                   // bytes appended to data
+        int garbage;                // bytes of overwritten or removed values still in data
+
+        int find(long key) {
+            return Arrays.binarySearch(keys, 0, n, key);
+        }
+
+        String value(int i) {
+            return new String(data, offsets[i], lengths[i], StandardCharsets.UTF_8);
+        }
+
+        boolean valueEquals(int i, byte[] bytes) {
+            return Arrays.equals(data, offsets[i], offsets[i] + lengths[i], bytes, 0, bytes.length);
+        }
+
+        void set(int i, byte[] bytes) {
+            if (bytes.length <= lengths[i]) {
+                System.arraycopy(bytes, 0, data, offsets[i], bytes.length);     // shrink in place
+                garbage += lengths[i] - bytes.length;
+                lengths[i] = bytes.length;
+                return;
+            }
+            garbage += lengths[i];
+            offsets[i] = append(bytes);
+            lengths[i] = bytes.length;
+        }
+
+        void insert(int i, long key, byte[] bytes) {
+            if (n == keys.length) {
+                int cap = Math.min(PAGE, n * 2);
+                keys = Arrays.copyOf(keys, cap);
+                offsets = Arrays.copyOf(offsets, cap);
+                lengths = Arrays.copyOf(lengths, cap);
+            }
+            System.arraycopy(keys, i, keys, i + 1, n - i);
+            System.arraycopy(offsets, i, offsets, i + 1, n - i);
+            System.arraycopy(lengths, i, lengths, i + 1, n - i);
+            keys[i] = key;
+            offsets[i] = append(bytes);
+            lengths[i] = bytes.length;
+            n++;
+        }
+
+        //drop entries [from, to)
+        void delete(int from, int to) {
+            for (int i = from; i < to; i++) garbage += lengths[i];
+            System.arraycopy(keys, to, keys, from, n - to);
+            System.arraycopy(offsets, to, offsets, from, n - to);
+            System.arraycopy(lengths, to, lengths, from, n - to);
+            n -= to - from;
+            if (n == 0) {
+                used = garbage = 0;
+            } else if (garbage > used / 2) {
+                compact();
+            }
+        }
+
+        //upper half goes to a new page
+        Page split() {
+            Page right = new Page();
+            int half = n / 2;
+            for (int i = half; i < n; i++)
+                right.insert(i - half, keys[i], Arrays.copyOfRange(data, offsets[i], offsets[i] + lengths[i]));
+            delete(half, n);
+            return right;
+        }
+
+        private int append(byte[] bytes) {
+            if (used + bytes.length > data.length) {
+                if (garbage > used / 2)
+                    compact();
+                if (used + bytes.length > data.length)
+                    data = Arrays.copyOf(data, Math.max(data.length * 2, used + bytes.length));
+            }
+            System.arraycopy(bytes, 0, data, used, bytes.length);
+            used += bytes.length;
+            return used - bytes.length;
+        }
+
+        //rewrite the live values back to back
+        private void compact() {
+            int live = used - garbage;
+            byte[] packed = new byte[Math.max(64, live + live / 2)];
+            int at = 0;
+            for (int i = 0; i < n; i++) {
+                System.arraycopy(data, offsets[i], packed, at, lengths[i]);
+                offsets[i] = at;
+                at += lengths[i];
+            }
+            data = packed;
+            used = at;
+            garbage = 0;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package hashing;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// persistent connections to other servers, reused across requests. every call has a deadline,
+// is retried with backoff only while the request has not reached the peer, and a peer that keeps
+// failing is skipped at once (Unavailable) for a while before a single call may probe it again
+class PeerPool {
+    static final int CONNECT_MS = Integer.getInteger("peer.connectMs", 1000);
+    static final int TIMEOUT_MS = Integer.getInteger("peer.timeoutMs", 2000);      // a routed request
+    static final int BULK_MS = Integer.getInteger("peer.bulkMs", 120_000);         // joins, exits, moving keys
+    static final int ATTEMPTS = Integer.getInteger("peer.attempts", 3);          // to open a connection, in all
+    static final int BACKOFF_MS = Integer.getInteger("peer.backoffMs", 20);
+    static final int TRIP_AFTER = Integer.getInteger("peer.breaker.failures", 5);   // in a row
+    static final int OPEN_MS = Integer.getInteger("peer.breaker.openMs", 2000);
+
+    private final int maxPerPeer = Integer.getInteger("pool.size", 8);
+    private final long idleMillis = Long.getLong("pool.idleMs", 30_000);
+
+    private final ConcurrentHashMap<ServerInfo, Peer> peers = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed = false;
+
+    PeerPool() {
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "pool-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        evictor.scheduleWithFixedDelay(this::evictIdle, idleMillis, idleMillis / 2, TimeUnit.MILLISECONDS);
+    }
+
+    // one request line, one response line within TIMEOUT_MS
+    String call(ServerInfo target, String message) throws IOException {
+        return call(target, message, TIMEOUT_MS);
+    }
+
+    //opening a connection is tried up to ATTEMPTS times in all and a stale pooled one is replaced once,
+    //as the request never got there; no reply in time is not retried, the peer may have acted on it
+    String call(ServerInfo target, String message, int timeoutMillis) throws IOException {
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+        boolean staleRetried = false;
+        for (int attempt = 0; ; attempt++) {
+            Connection c;
+            try {
+                c = borrow(target, left(deadline, target));
+            } catch (Unavailable | SocketTimeoutException e) {
+                throw e;
+            } catch (IOException e) {
+                if (attempt + 1 >= ATTEMPTS) throw e;
+                backoff(attempt, deadline, target);
+                continue;
+            }
+            boolean reused = c.uses > 0;
+            try {
+                c.socket.setSoTimeout(left(deadline, target));
+                c.out.println(message);
+                String reply = c.in.readLine();
+                if (reply == null) throw new EOFException("connection closed by " + target);
+                release(c);
+                return reply;
+            } catch (SocketTimeoutException e) {
+                invalidate(c);
+                throw new SocketTimeoutException("no reply from " + target + " within " + timeoutMillis + " ms");
+            } catch (IOException e) {
+                invalidate(c);
+                if (!reused || staleRetried) throw e;
+                staleRetried = true;
+                attempt--;
+            }
+        }
+    }
+
+    // fire a line and wait for its reply, but ignore failures
+    void send(ServerInfo target, String message) {
+        try {
+            call(target, message);
+        } catch (IOException ignore) {
+            //ignore
+        }
+    }
+
+    // a connection whose reads give up after TIMEOUT_MS
+    Connection borrow(ServerInfo target) throws IOException {
+        return borrow(target, TIMEOUT_MS);
+    }
+
+    //also waits at most readMillis for a free connection; hand it back with release() or invalidate().
+    //that wait is contention among our own callers and says nothing about the peer, so the breaker
+    //does not count it
+    Connection borrow(ServerInfo target, int readMillis) throws IOException {
+        Peer p = peers.computeIfAbsent(target, Peer::new);
+        p.admit();
+        try {
+            if (!p.permits.tryAcquire(readMillis, TimeUnit.MILLISECONDS)) {
+                p.released();
+                throw new SocketTimeoutException("no free connection to " + target + " within " + readMillis + " ms");
+            }
+        } catch (InterruptedException e) {
+            p.released();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        Connection c;
+        while ((c = p.idle.pollFirst()) != null) {
+            if (c.healthy(idleMillis)) break;
+            c.close();
+        }
+        try {
+            if (c == null) c = new Connection(p);
+            c.socket.setSoTimeout(readMillis);
+            return c;
+        } catch (IOException e) {
+            p.failed();
+            p.permits.release();
+            throw e;
+        }
+    }
+
+    void release(Connection c) {
+        c.uses++;
+        c.lastUsed = System.currentTimeMillis();
+        c.peer.succeeded();
+        c.peer.idle.offerFirst(c);                // most recently used first
+        c.peer.permits.release();
+        if (closed && c.peer.idle.remove(c)) c.close();
+    }
+
+    void invalidate(Connection c) {
+        c.close();
+        c.peer.failed();
+        c.peer.permits.release();
+    }
+
+    //closes every pooled connection, those still on loan as they come back
+    void close() {
+        closed = true;
+        evictor.shutdownNow();
+        for (Peer p : peers.values()) {
+            Connection c;
+            while ((c = p.idle.pollFirst()) != null) c.close();
+        }
+    }
+
+    //"timeout", "unavailable" or "unreachable", for the "err <reason>" replies
+    static String reason(IOException e) {
+        if (e instanceof SocketTimeoutException) return "timeout";
+        if (e instanceof Unavailable) return "unavailable";
+        return "unreachable";
+    }
+
+    //System.nanoTime() ms from now
+    static long deadline(long ms) {
+        return System.nanoTime() + ms * 1_000_000L;
+    }
+
+    //millis to the deadline, at least 1 as 0 means no timeout to a socket
+    static int left(long deadline, ServerInfo target) throws SocketTimeoutException {
+        long ms = (deadline - System.nanoTime()) / 1_000_000;
+        if (ms <= 0) throw new SocketTimeoutException("deadline passed calling " + target);
+        return (int) Math.min(Integer.MAX_VALUE, ms);
+    }
+
+    //BACKOFF_MS doubled per attempt with full jitter, never past the deadline
+    private static void backoff(int attempt, long deadline, ServerInfo target) throws IOException {
+        long ms = ThreadLocalRandom.current().nextLong(((long) BACKOFF_MS << Math.min(attempt, 10)) + 1);
+        if (ms >= left(deadline, target)) throw new SocketTimeoutException("deadline passed calling " + target);
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Peer p : peers.values()) {
+            for (Iterator<Connection> it = p.idle.descendingIterator(); it.hasNext(); ) {
+                Connection c = it.next();
+                if (now - c.lastUsed < idleMillis) break;
+                if (p.idle.removeLastOccurrence(c)) c.close();
+            }
+        }
+    }
+
+    private class Peer {
+        final ServerInfo info;
+        final Semaphore permits = new Semaphore(maxPerPeer);
+        final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+        private int failures;                   // in a row
+        private long openUntil;                 // nanoTime the breaker lets a probe through
+        private boolean probing;
+
+        Peer(ServerInfo info) {
+            this.info = info;
+        }
+
+        //closed: go ahead; open: fail fast; half open: one caller probes, the rest fail fast
+        synchronized void admit() throws Unavailable {
+            if (failures < TRIP_AFTER)
+                return;
+            if (System.nanoTime() - openUntil < 0 || probing)
+                throw new Unavailable(info, failures);
+            probing = true;
+        }
+
+        synchronized void succeeded() {
+            failures = 0;
+            probing = false;
+        }
+
+        //admitted but never got to try: a probe lets the next caller probe instead
+        synchronized void released() {
+            probing = false;
+        }
+
+        synchronized void failed() {
+            if (++failures >= TRIP_AFTER) {
+                if (failures == TRIP_AFTER || probing)
+                    System.out.println("Peer " + info + " failed " + failures + " times, skipping it for " + OPEN_MS + " ms");
+                openUntil = System.nanoTime() + OPEN_MS * 1_000_000L;
+            }
+            probing = false;
+        }
+    }
+
+    // a call not made because the peer's breaker is open
+    static final class Unavailable extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        Unavailable(ServerInfo peer, int failures) {
+            super(peer + " unavailable after " + failures + " failures");
+        }
+    }
+
+    class Connection {
+        final Peer peer;
+        final Socket socket;
+        final BufferedReader in;
+        final PrintWriter out;
+        final OutputStream bytes;               // pre-encoded lines; flush out before switching to it
+        long lastUsed = System.currentTimeMillis();
+        int uses = 0;
+
+        private Connection(Peer peer) throws IOException {
+            this.peer = peer;
+            this.socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(peer.info.ip, peer.info.port), CONNECT_MS);
+            } catch (SocketTimeoutException e) {
+                socket.close();                     // never got there, so unreachable rather than a timeout
+                throw new ConnectException("connect to " + peer.info + " timed out after " + CONNECT_MS + " ms");
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            socket.setTcpNoDelay(true);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            this.out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())), true);
+            this.bytes = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+        }
+
+        //stale if closed, idle too long or holding bytes nobody asked for
+        private boolean healthy(long maxIdle) {
+            if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) return false;
+            if (System.currentTimeMillis() - lastUsed > maxIdle) return false;
+            try {
+                return !in.ready() && socket.getInputStream().available() == 0;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+                //ignore
+            }
+        }
+    }
+}
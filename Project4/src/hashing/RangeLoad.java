@@ -0,0 +1,57 @@
+package hashing;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+// sampled request counts per ring position a server owns, cheap enough to leave on: one request in
+// SAMPLE is counted, and each position keeps a reservoir of the sampled keys so the rebalancer can
+// cut a range where its requests split rather than where its width does
+final class RangeLoad {
+    static final int SAMPLE = Math.max(1, Integer.getInteger("load.sample", 16));
+    static final int KEEP = Math.max(1, Integer.getInteger("load.keys", 64));    // sampled keys per position
+
+    private volatile ConcurrentHashMap<Long, Position> positions = new ConcurrentHashMap<>();
+    private volatile long since = System.currentTimeMillis();
+
+    //a request served here for key, which falls in the range ending at position
+    void record(long position, long key) {
+        if (ThreadLocalRandom.current().nextInt(SAMPLE) != 0)
+            return;
+        positions.computeIfAbsent(position, p -> new Position()).add(key);
+    }
+
+    // "load <ms> <position> <requests> <key>,<key>,... ..." with the estimated requests since the last
+    // reset, "-" for no keys; reset starts a new window
+    String report(boolean reset) {
+        Map<Long, Position> p = positions;
+        long now = System.currentTimeMillis();
+        StringBuilder sb = new StringBuilder("load ").append(Math.max(1, now - since));
+        if (reset) {
+            positions = new ConcurrentHashMap<>();
+            since = now;
+        }
+        new TreeMap<>(p).forEach((pos, x) -> x.append(sb.append(' ').append(pos)));
+        return sb.toString();
+    }
+
+    private static final class Position {
+        private final long[] keys = new long[KEEP];
+        private long seen;
+
+        synchronized void add(long key) {
+            if (seen < KEEP) keys[(int) seen] = key;
+            else {
+                long j = ThreadLocalRandom.current().nextLong(seen + 1);   // every sample kept with equal odds
+                if (j < KEEP) keys[(int) j] = key;
+            }
+            seen++;
+        }
+
+        synchronized void append(StringBuilder sb) {
+            sb.append(' ').append(seen * SAMPLE).append(' ');
+            int n = (int) Math.min(seen, KEEP);
+            if (n == 0) sb.append('-');
+            for (int i = 0; i < n; i++) sb.append(i > 0 ? "," : "").append(keys[i]);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package hashing;
+
+import java.util.*;
+
+// load-aware placement, planned on the bootstrap: every server's "load" report is folded into the
+// ranges of the current ring, each sampled key weighted by its position's request rate. while the
+// busiest server is more than TOLERANCE over the mean, the least busy one takes the part of one of its
+// ranges that comes closest to evening the two out: either a split, a new position inside the range at a sampled key, or the whole
+// range when it ends at one of the busy server's virtual positions. a server's own id never moves.
+// each move is the copy/cutover a join makes, so the plan only proposes and predicts
+final class Rebalancer {
+    static final double TOLERANCE = Double.parseDouble(System.getProperty("rebalance.tolerance", "0.1"));
+    static final int MAX_MOVES = Integer.getInteger("rebalance.moves", 8);
+
+    private final TreeMap<Long, Range> ranges = new TreeMap<>();       // by position, as in the ring
+    private final Map<Long, Double> before = new TreeMap<>();          // requests/s by server
+    private final Map<Long, Double> after = new TreeMap<>();
+
+    Rebalancer(RingSnapshot ring) {
+        for (int i = 0; i < ring.size(); i++) {
+            ranges.put(ring.token(i), new Range(ring.owner(i)));
+            before.put(ring.owner(i), 0.0);
+        }
+        after.putAll(before);
+    }
+
+    //one server's report; keys are placed by the ring we plan on, not by the position it counted them under
+    void add(String report) {
+        String[] p = report.trim().split(" ");
+        double seconds = Long.parseLong(p[1]) / 1000.0;
+        for (int i = 2; i + 2 < p.length; i += 3) {
+            if (p[i + 2].equals("-"))
+                continue;
+            String[] keys = p[i + 2].split(",");
+            double each = Long.parseLong(p[i + 1]) / seconds / keys.length;
+            for (String k : keys) {
+                Range r = rangeOf(Long.parseLong(k));
+                r.keys.merge(Long.parseLong(k), each, Double::sum);
+                r.load += each;
+                before.merge(r.owner, each, Double::sum);
+                after.merge(r.owner, each, Double::sum);
+            }
+        }
+    }
+
+    //moves in the order they should be made; after() is the load predicted once they are
+    List<Move> plan() {
+        List<Move> moves = new ArrayList<>();
+        double mean = total() / after.size();
+        while (moves.size() < MAX_MOVES) {
+            long hot = extreme(true), cold = extreme(false);
+            double want = Math.min(after.get(hot) - mean, mean - after.get(cold));
+            if (after.get(hot) <= mean * (1 + TOLERANCE) || want <= 0)
+                break;
+            Move m = null;
+            for (Map.Entry<Long, Range> e : ranges.entrySet()) {
+                if (e.getValue().owner != hot || e.getValue().load == 0)
+                    continue;
+                Move c = cut(e.getKey(), hot, cold, want);
+                if (c != null && (m == null || Math.abs(c.load - want) < Math.abs(m.load - want))) m = c;
+            }
+            if (m == null || m.load < mean * TOLERANCE)
+                break;                                  // a key too hot to split off, or not worth a handover
+            apply(m);
+            moves.add(m);
+        }
+        return moves;
+    }
+
+    Map<Long, Double> before() {
+        return before;
+    }
+
+    Map<Long, Double> after() {
+        return after;
+    }
+
+    //busiest over mean, 1.0 when the load is even
+    static double skew(Map<Long, Double> load) {
+        double total = 0;
+        for (double l : load.values()) total += l;
+        return total == 0 ? 1.0 : Collections.max(load.values()) * load.size() / total;
+    }
+
+    //the best cut of range (pred, t] of hot for cold: the prefix closest to want that still leaves
+    //cold below where hot was, null if none does
+    private Move cut(long t, long hot, long cold, double want) {
+        long pred = pred(t);
+        double gap = after.get(hot) - after.get(cold);
+        Move best = null;
+        double taken = 0;
+        for (Map.Entry<Long, Double> e : clockwise(pred, t)) {
+            taken += e.getValue();
+            if (e.getKey() == t || taken >= gap)
+                break;
+            if (best == null || Math.abs(taken - want) < Math.abs(best.load - want))
+                best = new Move(pred, e.getKey(), hot, cold, taken, false);
+        }
+        double all = ranges.get(t).load;
+        if (t != hot && all < gap && (best == null || Math.abs(all - want) <= Math.abs(best.load - want)))
+            best = new Move(pred, t, hot, cold, all, true);
+        return best;
+    }
+
+    private void apply(Move m) {
+        Range r = rangeOf(m.to);
+        if (m.whole) {
+            r.owner = m.taker;
+        } else {
+            Range part = new Range(m.taker);
+            for (Map.Entry<Long, Double> e : clockwise(m.from, m.to)) {
+                part.keys.put(e.getKey(), e.getValue());
+                r.keys.remove(e.getKey());
+            }
+            part.load = m.load;
+            r.load -= m.load;
+            ranges.put(m.to, part);
+        }
+        after.merge(m.holder, -m.load, Double::sum);
+        after.merge(m.taker, m.load, Double::sum);
+    }
+
+    //sampled keys of (from, to] in clockwise order, with their requests/s
+    private List<Map.Entry<Long, Double>> clockwise(long from, long to) {
+        Range r = rangeOf(to);
+        List<Map.Entry<Long, Double>> out = new ArrayList<>();
+        if (from < to) {
+            out.addAll(r.keys.subMap(from, false, to, true).entrySet());
+        } else {
+            out.addAll(r.keys.tailMap(from, false).entrySet());
+            out.addAll(r.keys.headMap(to, true).entrySet());
+        }
+        return out;
+    }
+
+    private Range rangeOf(long key) {
+        Map.Entry<Long, Range> e = ranges.ceilingEntry(key);
+        return (e != null ? e : ranges.firstEntry()).getValue();
+    }
+
+    private long pred(long t) {
+        Long p = ranges.lowerKey(t);
+        return p != null ? p : ranges.lastKey();
+    }
+
+    private long extreme(boolean busiest) {
+        long pick = -1;
+        for (Map.Entry<Long, Double> e : after.entrySet()) {
+            if (pick < 0 || (busiest ? e.getValue() > after.get(pick) : e.getValue() < after.get(pick)))
+                pick = e.getKey();
+        }
+        return pick;
+    }
+
+    private double total() {
+        double total = 0;
+        for (double l : after.values()) total += l;
+        return total;
+    }
+
+    // the keys of one range and the server owning it
+    private static final class Range {
+        long owner;
+        double load;                                    // requests/s
+        final TreeMap<Long, Double> keys = new TreeMap<>();
+
+        Range(long owner) {
+            this.owner = owner;
+        }
+    }
+
+    // (from, to] of holder goes to taker, which gets position to
+    static final class Move {
+        final long from;
+        final long to;
+        final long holder;
+        final long taker;
+        final double load;                              // requests/s predicted to go with it
+        final boolean whole;                            // to was a virtual position of holder, it changes hands
+
+        Move(long from, long to, long holder, long taker, double load, boolean whole) {
+            this.from = from;
+            this.to = to;
+            this.holder = holder;
+            this.taker = taker;
+            this.load = load;
+            this.whole = whole;
+        }
+
+        public String toString() {
+            return String.format(whole ? "position %3$d of server %4$d (range (%2$d, %3$d]) to server %5$d, %1$.0f req/s"
+                                       : "split (%2$d, %3$d] off server %4$d to server %5$d, %1$.0f req/s",
+                                 load, from, to, holder, taker);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package hashing;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+// asynchronously pipelines an owner's writes to the next R-1 servers on the ring
+class Replicator {
+    static final int FACTOR = Integer.getInteger("replicas", 1);
+    static final boolean READ_ANY = "any".equalsIgnoreCase(System.getProperty("read.consistency", "owner"));
+
+    private static final int BATCH = 1000;
+    private static final int MAX_QUEUED = 100_000;      // beyond this a link falls back to a full copy
+
+    private final PeerPool peers;
+    private final Supplier<Map<Long, String>> owned;  // everything this server currently owns
+    private final ConcurrentHashMap<ServerInfo, Link> links = new ConcurrentHashMap<>();
+
+    Replicator(PeerPool peers, Supplier<Map<Long, String>> owned) {
+        this.peers = peers;
+        this.owned = owned;
+    }
+
+    boolean enabled() {
+        return FACTOR > 1;
+    }
+
+    //value null means delete
+    void write(long key, String value) {
+        String rec = value == null ? "D " + key : "P " + key + " " + value;
+        for (Link l : links.values()) l.offer(rec);
+    }
+
+    //copy entries to every replica, e.g. a range this server just took over
+    void push(Map<Long, String> entries) {
+        for (Link l : links.values())
+            entries.forEach((k, v) -> l.offer("P " + k + " " + v));
+    }
+
+    //new replica set; servers that just joined it get a full copy, the rest only new writes
+    void setTargets(List<ServerInfo> targets) {
+        if (!enabled()) return;
+        for (ServerInfo t : targets) {
+            links.computeIfAbsent(t, info -> {
+                Link l = new Link(info);
+                l.resync = true;
+                l.start();
+                System.out.println("Replicating to " + info);
+                return l;
+            });
+        }
+        for (ServerInfo t : new ArrayList<>(links.keySet())) {
+            if (!targets.contains(t)) {
+                Link l = links.remove(t);
+                if (l != null) l.stop = true;
+            }
+        }
+    }
+
+    //whether self is one of the FACTOR-1 servers after the owner of key, i.e. holds a current copy of it
+    static boolean replicates(RingSnapshot ring, long self, long key) {
+        if (ring == null || ring.isEmpty()) return false;
+        int at = ring.successorIndex(key);
+        long owner = ring.owner(at);
+        Set<Long> seen = new HashSet<>();
+        for (int i = 0; i < ring.size() && seen.size() < FACTOR - 1; i++, at = ring.next(at)) {
+            long sid = ring.owner(at);
+            if (sid == owner || !seen.add(sid)) continue;
+            if (sid == self) return true;
+        }
+        return false;
+    }
+
+    //after a membership change: drop copies of ranges self no longer replicates, all of them without a ring
+    static void prune(KeyValueStore replicas, RingSnapshot ring, long self) {
+        Map<Long, String> stale = new HashMap<>();
+        replicas.snapshot().forEach((k, v) -> {
+            if (!replicates(ring, self, k)) stale.put(k, v);
+        });
+        replicas.removeAll(stale);
+    }
+
+    // receiving side of "replicate <count>": P/D lines applied to the replica store
+    static void receive(NioServer.Session session, int count, KeyValueStore replicas) {
+        Map<Long, String> puts = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String line = session.readLine();
+            if (line == null) return;
+            String[] r = line.split(" ", 3);
+            long key = Long.parseLong(r[1]);
+            if (r[0].equals("P")) {
+                puts.put(key, r[2]);
+            } else {
+                replicas.putAll(puts);                // keep order around the delete
+                puts.clear();
+                replicas.remove(key);
+            }
+        }
+        replicas.putAll(puts);
+        session.println("ack");
+    }
+
+    private class Link extends Thread {
+        final ServerInfo target;
+        final LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<>();
+        volatile boolean resync = false;
+        volatile boolean stop = false;
+
+        Link(ServerInfo target) {
+            super("replicate-" + target);
+            this.target = target;
+            setDaemon(true);
+        }
+
+        void offer(String rec) {
+            if (queue.size() >= MAX_QUEUED) {
+                queue.clear();
+                resync = true;
+            } else {
+                queue.add(rec);
+            }
+        }
+
+        public void run() {
+            List<String> batch = new ArrayList<>();
+            while (!stop) {
+                try {
+                    if (resync) {
+                        resync = false;
+                        queue.clear();                    // the copy covers anything queued so far
+                        owned.get().forEach((k, v) -> batch.add("P " + k + " " + v));
+                    }
+                    if (batch.isEmpty()) {
+                        String first = queue.poll(1, TimeUnit.SECONDS);
+                        if (first == null) continue;
+                        batch.add(first);
+                    }
+                    queue.drainTo(batch, BATCH);
+                    send(batch);
+                    batch.clear();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    try {
+                        Thread.sleep(500);                // keep the batch and retry
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void send(List<String> batch) throws IOException {
+            PeerPool.Connection c = peers.borrow(target);
+            try {
+                for (int from = 0; from < batch.size(); from += BATCH) {
+                    List<String> part = batch.subList(from, Math.min(batch.size(), from + BATCH));
+                    c.out.print("replicate " + part.size() + "\n");
+                    for (String rec : part) c.out.print(rec + "\n");
+                    c.out.flush();
+                    if (!"ack".equals(c.in.readLine())) throw new IOException("replica " + target + " did not ack");
+                }
+                peers.release(c);
+            } catch (IOException | RuntimeException e) {
+                peers.invalidate(c);
+                throw e;
+            }
+        }
+    }
+}
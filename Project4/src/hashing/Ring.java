@@ -0,0 +1,108 @@
+package hashing;
+
+import java.util.*;
+
+// identifier space arithmetic and helpers for routed replies
+final class Ring {
+    static final int BITS = Math.max(1, Math.min(62, Integer.getInteger("ring.bits", 10)));
+    static final long SIZE = 1L << BITS;                // ids and keys live in [0, SIZE), a positive long
+    static final int MAX_HOPS = 2 * BITS;
+
+    static final long FNV_OFFSET = 0xcbf29ce484222325L;   // 64-bit FNV-1a, for hashing names
+    static final long FNV_PRIME = 0x100000001b3L;
+
+    private Ring() { }
+
+    //check if key is in range (pred, curr]
+    static boolean inRange(long pred, long curr, long key) {
+        if (pred < curr) return key > pred && key <= curr;
+        // wrap‑around
+        return key > pred || key <= curr;
+    }
+
+    //open interval (from, to) going clockwise
+    static boolean between(long from, long to, long x) {
+        if (from < to) return x > from && x < to;
+        return x > from || x < to;
+    }
+
+    //first id covered by finger i of node n
+    static long fingerStart(long n, int i) {
+        return (n + (1L << i)) & (SIZE - 1);
+    }
+
+    //clockwise distance from a to b
+    static long distance(long a, long b) {
+        return (b - a) & (SIZE - 1);
+    }
+
+    //a number in [0, SIZE) is taken as the position itself, any other key is hashed onto the ring
+    static long key(String word) {
+        long k = 0;
+        for (int i = 0; i < word.length(); i++) {
+            int d = word.charAt(i) - '0';
+            if (d < 0 || d > 9 || k > (SIZE - 1) / 10) return hash(word);
+            k = k * 10 + d;
+        }
+        return word.isEmpty() || k >= SIZE ? hash(word) : k;
+    }
+
+    //64-bit FNV-1a over the chars with murmur3's finalizer, top BITS bits kept
+    static long hash(String word) {
+        long h = FNV_OFFSET;
+        for (int i = 0; i < word.length(); i++) {
+            h ^= word.charAt(i);
+            h *= FNV_PRIME;
+        }
+        return spread(h);
+    }
+
+    //the ring position for a finished FNV-1a state
+    static long spread(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h >>> (64 - BITS);
+    }
+
+    //a routed request passed on, "hop <ttl> <ms> <verb> <key> [value]": ms is what the next server may
+    //spend of our deadline, nine tenths of what is left so its "err timeout" gets back before we give up
+    static String hop(String verb, long key, String value, int ttl, long deadline) {
+        long ms = Math.max(1, (deadline - System.nanoTime()) / 1_000_000 * 9 / 10);
+        return "hop " + ttl + " " + ms + " " + verb + " " + key + (value != null ? " " + value : "");
+    }
+
+    //what follows the first words of line, spaces and all: the value of an insert or of a batch line,
+    //null if there is none
+    static String rest(String line, int words) {
+        String[] p = line.split(" ", words + 1);
+        return p.length > words && !p[words].isEmpty() ? p[words] : null;
+    }
+
+    static boolean routed(String verb) {
+        return verb.equalsIgnoreCase("lookup") || verb.equalsIgnoreCase("insert") || verb.equalsIgnoreCase("delete");
+    }
+
+    // routed replies carry the ids they visited: "<status> path <id>,<id>,..."
+    static String withHop(long hop, String reply) {
+        int i = reply.lastIndexOf(" path ");
+        if (i < 0) return reply + " path " + hop;
+        return reply.substring(0, i) + " path " + hop + "," + reply.substring(i + 6);
+    }
+
+    static String status(String reply) {
+        int i = reply.lastIndexOf(" path ");
+        return i < 0 ? reply : reply.substring(0, i);
+    }
+
+    static List<Long> path(String reply) {
+        List<Long> hops = new ArrayList<>();
+        int i = reply.lastIndexOf(" path ");
+        if (i < 0) return hops;
+        for (String h : reply.substring(i + 6).trim().split(","))
+            hops.add(Long.parseLong(h));
+        return hops;
+    }
+}
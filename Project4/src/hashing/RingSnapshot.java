@@ -0,0 +1,169 @@
+package hashing;
+
+import java.util.*;
+
+// immutable ring membership: positions sorted ascending, the server id and address at each one,
+// and an epoch that grows with every change. writers build a new snapshot and swap it in whole,
+// so lookups are a binary search over a primitive array with no locking and no allocation
+final class RingSnapshot {
+    static final RingSnapshot EMPTY = new RingSnapshot(0, new long[0], new long[0], new ServerInfo[0]);
+
+    final long epoch;
+    private final long[] tokens;
+    private final long[] owners;                // server id at each position
+    private final ServerInfo[] servers;
+
+    private RingSnapshot(long epoch, long[] tokens, long[] owners, ServerInfo[] servers) {
+        this.epoch = epoch;
+        this.tokens = tokens;
+        this.owners = owners;
+        this.servers = servers;
+    }
+
+    int size() {
+        return tokens.length;
+    }
+
+    boolean isEmpty() {
+        return tokens.length == 0;
+    }
+
+    long token(int i) {
+        return tokens[i];
+    }
+
+    long owner(int i) {
+        return owners[i];
+    }
+
+    ServerInfo server(int i) {
+        return servers[i];
+    }
+
+    //index of the first position at or after key, wrapping past the top
+    int successorIndex(long key) {
+        int i = Arrays.binarySearch(tokens, key);
+        if (i < 0) i = -i - 1;
+        return i == tokens.length ? 0 : i;
+    }
+
+    //index of the last position strictly before key, wrapping below the bottom
+    int predecessorIndex(long key) {
+        int i = Arrays.binarySearch(tokens, key);
+        if (i < 0) i = -i - 1;
+        return i == 0 ? tokens.length - 1 : i - 1;
+    }
+
+    //index of the next position after i, wrapping
+    int next(int i) {
+        return i + 1 == tokens.length ? 0 : i + 1;
+    }
+
+    long successor(long key) {
+        return tokens[successorIndex(key)];
+    }
+
+    long predecessor(long key) {
+        return tokens[predecessorIndex(key)];
+    }
+
+    int indexOf(long token) {
+        int i = Arrays.binarySearch(tokens, token);
+        return i < 0 ? -1 : i;
+    }
+
+    boolean contains(long token) {
+        return indexOf(token) >= 0;
+    }
+
+    //the server at a position, null if nobody is there
+    ServerInfo serverAt(long token) {
+        int i = indexOf(token);
+        return i < 0 ? null : servers[i];
+    }
+
+    //the server id owning a position; a position nobody holds is taken as its own id
+    long ownerOf(long token) {
+        int i = indexOf(token);
+        return i < 0 ? token : owners[i];
+    }
+
+    List<Long> tokensOf(long owner) {
+        List<Long> out = new ArrayList<>();
+        for (int i = 0; i < tokens.length; i++)
+            if (owners[i] == owner) out.add(tokens[i]);
+        return out;
+    }
+
+    //true once some server holds more than one position
+    boolean virtual() {
+        for (int i = 0; i < tokens.length; i++)
+            if (owners[i] != tokens[i]) return true;
+        return false;
+    }
+
+    //next epoch with owner added at the given positions, taking over anything already there
+    RingSnapshot with(Collection<Long> added, long owner, ServerInfo info) {
+        TreeMap<Long, Integer> merged = new TreeMap<>();
+        for (int i = 0; i < tokens.length; i++) merged.put(tokens[i], i);
+        for (long t : added) merged.put(t, -1);
+        long[] t2 = new long[merged.size()];
+        long[] o2 = new long[merged.size()];
+        ServerInfo[] s2 = new ServerInfo[merged.size()];
+        int j = 0;
+        for (Map.Entry<Long, Integer> e : merged.entrySet()) {
+            int i = e.getValue();
+            t2[j] = e.getKey();
+            o2[j] = i < 0 ? owner : owners[i];
+            s2[j] = i < 0 ? info : servers[i];
+            j++;
+        }
+        return new RingSnapshot(epoch + 1, t2, o2, s2);
+    }
+
+    //next epoch without any position of owner
+    RingSnapshot without(long owner) {
+        int n = 0;
+        for (long o : owners) if (o != owner) n++;
+        long[] t2 = new long[n];
+        long[] o2 = new long[n];
+        ServerInfo[] s2 = new ServerInfo[n];
+        int j = 0;
+        for (int i = 0; i < tokens.length; i++) {
+            if (owners[i] == owner) continue;
+            t2[j] = tokens[i];
+            o2[j] = owners[i];
+            s2[j] = servers[i];
+            j++;
+        }
+        return new RingSnapshot(epoch + 1, t2, o2, s2);
+    }
+
+    // "<epoch> <position> <server id> <ip> <port> ..."
+    String table() {
+        StringBuilder sb = new StringBuilder().append(epoch);
+        for (int i = 0; i < tokens.length; i++)
+            sb.append(' ').append(tokens[i]).append(' ').append(owners[i])
+              .append(' ').append(servers[i].ip).append(' ').append(servers[i].port);
+        return sb.toString();
+    }
+
+    // inverse of table(), read from words[from]; address maps (id, ip, port) to how we reach that server
+    static RingSnapshot parse(String[] words, int from, Address address) {
+        long epoch = Long.parseLong(words[from]);
+        int n = (words.length - from - 1) / 4;
+        long[] t = new long[n];
+        long[] o = new long[n];
+        ServerInfo[] s = new ServerInfo[n];
+        for (int i = 0, w = from + 1; i < n; i++, w += 4) {
+            t[i] = Long.parseLong(words[w]);
+            o[i] = Long.parseLong(words[w + 1]);
+            s[i] = address.of(o[i], words[w + 2], Integer.parseInt(words[w + 3]));
+        }
+        return new RingSnapshot(epoch, t, o, s);        // already sorted by the sender
+    }
+
+    interface Address {
+        ServerInfo of(long serverId, String ip, int port);
+    }
+}
@@ -0,0 +1,161 @@
+package hashing;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// "scan <from> <to> [limit]": every key in [from, to] in key order, read in place from the servers
+// owning its stretches of the ring. a stretch is fetched a page at a time with "range", up to
+// PARALLEL stretches ahead of the one being written; a slow reader blocks the session's writes and
+// with them further fetches, so only a few pages are ever held. the ring is the one at the start
+final class Scan {
+    static final int PAGE = Integer.getInteger("scan.page", 1000);
+    static final int PARALLEL = Integer.getInteger("scan.parallel", 4);
+
+    private static final ExecutorService FETCHERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "scan");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final RingSnapshot ring;
+    private final long self;
+    private final KeyValueStore local;
+    private final PeerPool peers;
+
+    Scan(RingSnapshot ring, long self, KeyValueStore local, PeerPool peers) {
+        this.ring = ring;
+        this.self = self;
+        this.local = local;
+        this.peers = peers;
+    }
+
+    //"<key> <value>" lines, then "end <count>", or "err <reason>" once an owner cannot be read
+    void run(NioServer.Session session, long from, long to, long limit) {
+        if (from < 0 || from > to || to >= Ring.SIZE || limit < 0) {
+            session.println("err scan needs 0 <= from <= to < " + Ring.SIZE);
+            return;
+        }
+        List<Stretch> stretches = split(from, to);
+        ArrayDeque<Future<Page>> ahead = new ArrayDeque<>();
+        int next = 0;
+        long sent = 0;
+        try {
+            for (int i = 0; i < stretches.size() && sent < limit; i++) {
+                for (; next < stretches.size() && ahead.size() < PARALLEL; next++) {
+                    Stretch s = stretches.get(next);
+                    int n = pageSize(limit - sent);
+                    ahead.add(FETCHERS.submit(() -> fetch(s, s.lo, n)));
+                }
+                Stretch s = stretches.get(i);
+                Page page = ahead.poll().get();
+                while (true) {
+                    for (Iterator<String> it = page.lines.iterator(); it.hasNext() && sent < limit; sent++)
+                        session.println(it.next());
+                    if (!page.full || sent == limit || page.last >= s.hi)
+                        break;
+                    page = fetch(s, page.last + 1, pageSize(limit - sent));
+                }
+            }
+            session.println("end " + sent);
+        } catch (ExecutionException e) {
+            session.println("err " + e.getCause().getMessage());
+        } catch (IOException e) {
+            session.println("err " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            session.println("err interrupted");
+        } finally {
+            ahead.forEach(f -> f.cancel(false));    // running fetches finish and hand their connection back
+        }
+    }
+
+    //"range <lo> <hi> <limit>" on an owner: "count <n>" and n lines from its own store
+    static void serveRange(NioServer.Session session, KeyValueStore store, long lo, long hi, int limit) {
+        NavigableMap<Long, String> page = store.range(lo, hi, limit);
+        session.println("count " + page.size());
+        for (Map.Entry<Long, String> e : page.entrySet())
+            session.println(e.getKey() + " " + e.getValue());
+    }
+
+    private static int pageSize(long left) {
+        return (int) Math.min(PAGE, left);
+    }
+
+    //[from, to] cut at the ring positions, neighbouring stretches of one server joined
+    private List<Stretch> split(long from, long to) {
+        List<Stretch> out = new ArrayList<>();
+        if (ring.isEmpty()) {
+            out.add(new Stretch(self, null, from, to));
+            return out;
+        }
+        long lo = from;
+        for (int at = ring.successorIndex(lo); ; at = ring.next(at)) {
+            long token = ring.token(at);
+            long hi = token >= lo ? Math.min(to, token) : to;       // wrapped: the first position owns the rest
+            Stretch last = out.isEmpty() ? null : out.get(out.size() - 1);
+            if (last != null && last.owner == ring.owner(at)) last.hi = hi;
+            else out.add(new Stretch(ring.owner(at), ring.server(at), lo, hi));
+            if (hi >= to)
+                return out;
+            lo = hi + 1;
+        }
+    }
+
+    private Page fetch(Stretch s, long lo, int n) throws IOException {
+        if (s.owner == self) {
+            NavigableMap<Long, String> m = local.range(lo, s.hi, n);
+            List<String> lines = new ArrayList<>(m.size());
+            m.forEach((k, v) -> lines.add(k + " " + v));
+            return new Page(lines, m.isEmpty() ? lo : m.lastKey(), m.size() == n);
+        }
+        PeerPool.Connection c = peers.borrow(s.server);
+        try {
+            c.out.println("range " + lo + " " + s.hi + " " + n);
+            String head = c.in.readLine();
+            if (head == null || !head.startsWith("count "))
+                throw new IOException("range not served by " + s.owner + ": " + head);
+            int count = Integer.parseInt(head.substring(6));
+            List<String> lines = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String line = c.in.readLine();
+                if (line == null) throw new EOFException("connection closed by " + s.owner);
+                lines.add(line);
+            }
+            String tail = count == 0 ? null : lines.get(count - 1);
+            long last = tail == null ? lo : Long.parseLong(tail.substring(0, tail.indexOf(' ')));
+            peers.release(c);
+            return new Page(lines, last, count == n);
+        } catch (IOException | RuntimeException e) {
+            peers.invalidate(c);
+            throw e;
+        }
+    }
+
+    // keys [lo, hi] held by one server
+    private static class Stretch {
+        final long owner;
+        final ServerInfo server;
+        final long lo;
+        long hi;
+
+        Stretch(long owner, ServerInfo server, long lo, long hi) {
+            this.owner = owner;
+            this.server = server;
+            this.lo = lo;
+            this.hi = hi;
+        }
+    }
+
+    private static class Page {
+        final List<String> lines;
+        final long last;                // key of the last line
+        final boolean full;             // there may be more after last
+
+        Page(List<String> lines, long last, boolean full) {
+            this.lines = lines;
+            this.last = last;
+            this.full = full;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package hashing;
+
+// where a server listens
+class ServerInfo {
+    final String ip;
+    final int port;
+
+    ServerInfo(String ip, int port) {
+        this.ip = ip;
+        this.port = port;
+    }
+
+    public String toString() {
+        return ip + ":" + port;
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof ServerInfo)) return false;
+        ServerInfo other = (ServerInfo) o;
+        return port == other.port && ip.equals(other.ip);
+    }
+
+    public int hashCode() {
+        return ip.hashCode() * 31 + port;
+    }
+}
@@ -0,0 +1,100 @@
+package hashing;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+// skip list store: lock-free reads, writers share a read lock so that
+// range extraction and snapshots can exclude them and stay atomic
+class SkipListStore implements KeyValueStore {
+    private final ConcurrentSkipListMap<Long, String> map = new ConcurrentSkipListMap<>();
+    private final ReentrantReadWriteLock rangeLock = new ReentrantReadWriteLock();
+
+    public String get(long key) {
+        return map.get(key);
+    }
+
+    public String put(long key, String value) {
+        rangeLock.readLock().lock();
+        try {
+            return map.put(key, value);
+        } finally {
+            rangeLock.readLock().unlock();
+        }
+    }
+
+    public String remove(long key) {
+        rangeLock.readLock().lock();
+        try {
+            return map.remove(key);
+        } finally {
+            rangeLock.readLock().unlock();
+        }
+    }
+
+    public boolean remove(long key, String expected) {
+        rangeLock.readLock().lock();
+        try {
+            return map.remove(key, expected);
+        } finally {
+            rangeLock.readLock().unlock();
+        }
+    }
+
+    public void putAll(Map<Long, String> entries) {
+        rangeLock.readLock().lock();
+        try {
+            map.putAll(entries);
+        } finally {
+            rangeLock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    public NavigableMap<Long, String> extractRange(long pred, long curr) {
+        NavigableMap<Long, String> out = new TreeMap<>();
+        rangeLock.writeLock().lock();
+        try {
+            if (pred < curr) {
+                take(map.subMap(pred, false, curr, true), out);
+            } else {
+                take(map.tailMap(pred, false), out);
+                take(map.headMap(curr, true), out);
+            }
+        } finally {
+            rangeLock.writeLock().unlock();
+        }
+        return out;
+    }
+
+    private static void take(NavigableMap<Long, String> view, NavigableMap<Long, String> out) {
+        out.putAll(view);
+        view.clear();
+    }
+
+    //lock-free like get, so not atomic against concurrent writes
+    public NavigableMap<Long, String> range(long lo, long hi, int limit) {
+        NavigableMap<Long, String> out = new TreeMap<>();
+        for (Map.Entry<Long, String> e : map.subMap(lo, true, hi, true).entrySet()) {
+            if (out.size() == limit) break;
+            out.put(e.getKey(), e.getValue());
+        }
+        return out;
+    }
+
+    public NavigableMap<Long, String> snapshot() {
+        rangeLock.writeLock().lock();
+        try {
+            return new TreeMap<>(map);
+        } finally {
+            rangeLock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package hashing;
+
+import java.io.*;
+import java.util.Arrays;
+
+// client that sends each request straight to the server owning the key: the ring table is
+// fetched once from any server and the owner found with the same successor rule the servers
+// use, so a request is one hop. the request carries the name, not our hash of it, so the server
+// places it by its own ring.bits, and goes with no hops to spare; a server that does not own the
+// key answers "notowner <epoch>", and if its table is newer than ours we take that one and try
+// again, otherwise it routes the request for us
+public class SmartClient implements Closeable {
+    private static final int REDIRECTS = 3;
+
+    private final ServerInfo seed;
+    private final PeerPool peers = new PeerPool();
+    private volatile RingSnapshot ring = RingSnapshot.EMPTY;
+
+    //any server of the ring, the bootstrap or a name server
+    public SmartClient(String host, int port) throws IOException {
+        this.seed = new ServerInfo(host, port);
+        refresh(seed, ring.epoch);
+    }
+
+    public NamingClient.Reply lookup(String key) throws IOException {
+        return new NamingClient.Reply(send("lookup", key, null));
+    }
+
+    public NamingClient.Reply insert(String key, String value) throws IOException {
+        return new NamingClient.Reply(send("insert", key, value));
+    }
+
+    public NamingClient.Reply delete(String key) throws IOException {
+        return new NamingClient.Reply(send("delete", key, null));
+    }
+
+    //epoch of the table we route on
+    public long epoch() {
+        return ring.epoch;
+    }
+
+    //the raw routed reply, "<status> path <id>,..."
+    String send(String verb, String name, String value) throws IOException {
+        long key = Ring.key(name);                      // only picks the server, which hashes name itself
+        String args = " " + verb + " " + name + (value != null ? " " + value : "");
+        for (int attempt = 0; ; attempt++) {
+            RingSnapshot r = ring;
+            ServerInfo owner = r.server(r.successorIndex(key));
+            String reply;
+            try {
+                reply = peers.call(owner, "hop 0 " + PeerPool.TIMEOUT_MS + args);
+            } catch (IOException e) {
+                if (attempt >= REDIRECTS) throw e;
+                try {
+                    refresh(seed, r.epoch);                 // the owner may have left
+                } catch (IOException ignore) {
+                    throw e;
+                }
+                continue;
+            }
+            String status = Ring.status(reply);
+            if (!status.startsWith("notowner "))
+                return reply;
+            long theirs = Long.parseLong(status.substring(9));
+            if (theirs > r.epoch && attempt < REDIRECTS) {
+                refresh(owner, r.epoch);                    // it knows a newer ring than we do
+            } else {
+                return peers.call(owner, "hop " + Ring.MAX_HOPS + " " + PeerPool.TIMEOUT_MS + args,
+                                  2 * PeerPool.TIMEOUT_MS);       // stale itself, let it route
+            }
+        }
+    }
+
+    //take the table of server unless another thread already moved past the epoch we routed on
+    private synchronized void refresh(ServerInfo server, long stale) throws IOException {
+        if (ring.epoch > stale)
+            return;
+        String reply = peers.call(server, "ring");
+        if (!reply.startsWith("ring "))
+            throw new IOException("no ring from " + server + ": " + reply);
+        // the bootstrap lists itself as localhost, which is the host we asked
+        RingSnapshot r = RingSnapshot.parse(reply.trim().split(" "), 1, (sid, ip, p) ->
+                new ServerInfo(ip.equals("localhost") ? server.ip : ip, p));
+        if (r.isEmpty())
+            throw new IOException("empty ring from " + server);
+        if (r.epoch > ring.epoch) ring = r;
+    }
+
+    public void close() {
+        peers.close();
+    }
+
+    // java hashing.SmartClient <host> <port> lookup <key> | insert <key> <value> | delete <key>
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.out.println("Usage: java SmartClient <host> <port> lookup|insert|delete <key> [value]");
+            return;
+        }
+        try (SmartClient client = new SmartClient(args[0], Integer.parseInt(args[1]))) {
+            NamingClient.Reply reply;
+            switch (args[2].toLowerCase()) {
+                case "lookup": reply = client.lookup(args[3]); break;
+                case "insert": reply = client.insert(args[3], String.join(" ", Arrays.copyOfRange(args, 4, args.length))); break;
+                case "delete": reply = client.delete(args[3]); break;
+                default:
+                    System.out.println("Unknown command " + args[2]);
+                    return;
+            }
+            System.out.println(reply + " (ring epoch " + client.epoch() + ")");
+        }
+    }
+}
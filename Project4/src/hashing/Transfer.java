@@ -0,0 +1,275 @@
+package hashing;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+// streams key ranges between servers as framed "transfer" chunks
+final class Transfer {
+    static final int CHUNK = Integer.getInteger("transfer.chunk", 1000);
+    static final int WINDOW = Integer.getInteger("transfer.window", 8);       // chunks in flight
+    static final int STAGE = Integer.getInteger("transfer.stage", 65536);     // keys a receiver stages in memory
+
+    private Transfer() { }
+
+    // one connection, CHUNK keys per frame with up to WINDOW frames awaiting their ack,
+    // then a commit carrying count and CRC32 that the receiver must match; a null value
+    // goes as the bare key and deletes it there. the caller keeps the entries if this throws;
+    // returns the bytes sent
+    static long send(PeerPool peers, ServerInfo target, long from, long to,
+                     SortedMap<Long, String> entries, String label) throws IOException {
+        return send(peers, target, from, to, entries, label, 0);
+    }
+
+    //the same, but given up once System.nanoTime() passes deadline rather than after BULK_MS without a reply;
+    //for transfers made while requests wait on them
+    static long send(PeerPool peers, ServerInfo target, long from, long to,
+                     SortedMap<Long, String> entries, String label, long deadline) throws IOException {
+        long start = System.nanoTime();
+        Stream stream = new Stream(peers, target, from, to, deadline);
+        try {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            int n = 0;
+            for (Map.Entry<Long, String> e : entries.entrySet()) {
+                String line = e.getValue() == null ? e.getKey() + "\n" : e.getKey() + " " + e.getValue() + "\n";
+                frame.write(line.getBytes(StandardCharsets.UTF_8));
+                if (++n == CHUNK) {
+                    stream.frame(frame.toByteArray(), frame.size(), n);
+                    frame.reset();
+                    n = 0;
+                }
+            }
+            if (n > 0) 
+                stream.frame(frame.toByteArray(), frame.size(), n);
+            stream.commit();
+        } catch (IOException | RuntimeException e) {
+            stream.abort();
+            throw e;
+        }
+
+        long ms = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+        System.out.println(label + ": " + entries.size() + " keys (" + stream.bytes + " bytes) to " + target
+                           + " in " + ms + " ms, " + (entries.size() * 1000L / ms) + " keys/s");
+        return stream.bytes;
+    }
+
+    // the sending half of a transfer over one pooled connection: frames of already encoded
+    // "<key> <value>\n" lines go out as they come, at most WINDOW of them unacknowledged.
+    // callers on several threads may add frames; checkpoint() has the receiver apply what came
+    // so far and goes on, commit() or abort() ends it
+    static final class Stream {
+        private final PeerPool peers;
+        private final ServerInfo target;
+        private final byte[] header;
+        private final PeerPool.Connection c;
+        private final long deadline;                    // System.nanoTime() to be done by, 0 for BULK_MS per reply
+        private final CRC32 crc = new CRC32();         // of the lines since the last checkpoint
+        private long lines;
+        private int frames;
+        private long count;
+        private long bytes;
+        private int inFlight;
+        private boolean done;
+
+        Stream(PeerPool peers, ServerInfo target, long from, long to) throws IOException {
+            this(peers, target, from, to, 0);
+        }
+
+        Stream(PeerPool peers, ServerInfo target, long from, long to, long deadline) throws IOException {
+            this.peers = peers;
+            this.target = target;
+            this.deadline = deadline;
+            this.header = ("transfer " + from + " " + to + " ").getBytes(StandardCharsets.US_ASCII);
+            this.c = peers.borrow(target, readMillis());
+        }
+
+        //n lines in lines[0, len)
+        void frame(byte[] lines, int len, int n) throws IOException {
+            frame(lines, len, n, 0);
+        }
+
+        //the same, tagged: a key the receiver already has from a frame with a higher tag keeps that value,
+        //so frames added by several threads need not arrive in the order their tags say
+        synchronized void frame(byte[] lines, int len, int n, long order) throws IOException {
+            c.bytes.write(header);
+            c.bytes.write(Integer.toString(n).getBytes(StandardCharsets.US_ASCII));
+            if (order > 0) c.bytes.write((" " + order).getBytes(StandardCharsets.US_ASCII));
+            c.bytes.write('\n');
+            c.bytes.write(lines, 0, len);
+            c.bytes.flush();
+            crc.update(lines, 0, len);
+            this.lines += n;
+            frames++;
+            count += n;
+            bytes += len;
+            if (++inFlight >= WINDOW) {
+                expectAck();
+                inFlight--;
+            }
+        }
+
+        synchronized long count() {
+            return count;
+        }
+
+        //frames sent since the last checkpoint
+        synchronized int uncommitted() {
+            return frames;
+        }
+
+        //wait for the outstanding acks, then have the receiver check count and CRC of the lines since
+        //the last checkpoint and apply them; the stream stays open for more
+        synchronized void checkpoint() throws IOException {
+            for (; inFlight > 0; inFlight--) expectAck();
+            c.bytes.write(("commit " + lines + " " + crc.getValue() + "\n").getBytes(StandardCharsets.US_ASCII));
+            c.bytes.flush();
+            c.socket.setSoTimeout(readMillis());
+            String reply = c.in.readLine();
+            if (reply == null || !reply.startsWith("committed"))
+                throw new IOException("commit rejected by " + target + ": " + reply);
+            crc.reset();
+            lines = 0;
+            frames = 0;
+        }
+
+        //checkpoint, and give the connection back
+        synchronized void commit() throws IOException {
+            checkpoint();
+            done = true;
+            peers.release(c);
+        }
+
+        synchronized void abort() {
+            if (done) 
+                return;
+            done = true;
+            peers.invalidate(c);
+        }
+
+        private void expectAck() throws IOException {
+            c.socket.setSoTimeout(readMillis());
+            String reply = c.in.readLine();
+            if (!"ack".equals(reply)) throw new IOException("chunk not acknowledged by " + target + ": " + reply);
+        }
+
+        private int readMillis() throws SocketTimeoutException {
+            return deadline == 0 ? PeerPool.BULK_MS : PeerPool.left(deadline, target);
+        }
+    }
+
+    //receiving side of "transfer <from> <to> <count> [order]": stage the lines and ack the frame. nothing
+    //reaches the store before a matching commit, so an aborted or broken transfer leaves it as it was.
+    //tagged frames must come in tag order, which is what lets the last line of a seed file win
+    static void receive(NioServer.Session session, String[] p) throws IOException {
+        int count = Integer.parseInt(p[3]);
+        long order = p.length > 4 ? Long.parseLong(p[4]) : 0;
+        Tally t = tally(session);
+        if (order > 0 && order < t.order) t.broken = true;
+        t.order = Math.max(t.order, order);
+        for (int lines = 0; lines < count; lines++) {
+            String line = session.readLine();
+            if (line == null) return;                      // sender went away
+            String[] kv = line.split(" ", 2);
+            t.stage(Long.parseLong(kv[0]), kv.length == 1 ? null : kv[1]);
+            t.count++;
+            t.crc.update((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        session.println(t.broken ? "err frame " + order + " after " + t.order : "ack");
+    }
+
+    //"commit <count> <crc>": compare with what arrived on this connection since the last commit, and
+    //apply it only if it matches; our replicas get it like any other write
+    static void commit(NioServer.Session session, long count, long crc, KeyValueStore store, Replicator replicator)
+            throws IOException {
+        Tally t = tally(session);
+        session.attach(null);
+        try {
+            if (t.broken || t.count != count || t.crc.getValue() != crc) {
+                session.println("mismatch " + t.count + " " + t.crc.getValue());
+                return;
+            }
+            t.applyTo(store, replicator);
+            session.println("committed " + count);
+        } finally {
+            t.close();
+        }
+    }
+
+    private static Tally tally(NioServer.Session session) {
+        if (!(session.attachment() instanceof Tally)) session.attach(new Tally());
+        return (Tally) session.attachment();
+    }
+
+    private static void apply(Map<Long, String> lines, KeyValueStore store, Replicator replicator) {
+        Map<Long, String> puts = new HashMap<>();
+        lines.forEach((k, v) -> {
+            if (v == null) {
+                if (store.remove(k) != null) replicator.write(k, null);
+            } else {
+                puts.put(k, v);
+            }
+        });
+        store.putAll(puts);
+        replicator.push(puts);
+    }
+
+    // what one connection sent since its last commit: the newest STAGE keys in memory, the lines before
+    // them in a temporary file in arrival order, so a big handover costs disk rather than heap. closed
+    // with its session if no commit comes
+    private static final class Tally implements Closeable {
+        long count;
+        long order;                                     // highest frame tag so far
+        boolean broken;                                 // a tagged frame came after a later one
+        final CRC32 crc = new CRC32();
+        private final Map<Long, String> staged = new HashMap<>();   // null value: delete
+        private Path spill;
+        private BufferedWriter out;
+        private boolean closed;
+
+        synchronized void stage(long key, String value) throws IOException {
+            if (closed)
+                throw new IOException("transfer closed");       // its session went away under us
+            if (staged.size() >= STAGE && !staged.containsKey(key)) {
+                if (out == null) {
+                    spill = Files.createTempFile("transfer-", ".stage");
+                    out = Files.newBufferedWriter(spill, StandardCharsets.UTF_8);
+                }
+                for (Map.Entry<Long, String> e : staged.entrySet())
+                    out.write(e.getValue() == null ? e.getKey() + "\n" : e.getKey() + " " + e.getValue() + "\n");
+                staged.clear();
+            }
+            staged.put(key, value);
+        }
+
+        //the spilled lines in the order they came, STAGE keys at a time, then the staged ones
+        synchronized void applyTo(KeyValueStore store, Replicator replicator) throws IOException {
+            if (out != null) {
+                out.close();
+                out = null;
+                Map<Long, String> batch = new HashMap<>();
+                try (BufferedReader in = Files.newBufferedReader(spill, StandardCharsets.UTF_8)) {
+                    for (String line; (line = in.readLine()) != null; ) {
+                        String[] kv = line.split(" ", 2);
+                        batch.put(Long.parseLong(kv[0]), kv.length == 1 ? null : kv[1]);
+                        if (batch.size() == STAGE) {
+                            apply(batch, store, replicator);
+                            batch.clear();
+                        }
+                    }
+                }
+                apply(batch, store, replicator);
+            }
+            apply(staged, store, replicator);
+        }
+
+        public synchronized void close() throws IOException {
+            closed = true;
+            staged.clear();
+            if (out != null) out.close();
+            if (spill != null) Files.deleteIfExists(spill);
+        }
+    }
+}